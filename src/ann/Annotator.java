@@ -1,25 +1,31 @@
 package ann;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Set;
 
-import htsjdk.samtools.SamInputResource;
-import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordIterator;
-import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReader;
 import htsjdk.samtools.reference.IndexedFastaSequenceFile;
+import run.Run;
+import util.AnnotateOptions;
+import util.Journal;
 import util.Log;
+import util.SamInput;
 import util.Settings;
+import util.Shard;
+import util.Stat;
 import util.bio.Annotation;
 import util.bio.GFFException;
 import util.bio.GFFParser;
@@ -27,10 +33,51 @@ import util.bio.GFFeature;
 import util.bio.Gene;
 import util.bio.Intron;
 
+/**
+ * Records of given chromosomes (of the shard, see Shard, or not annotated yet) read by bam index, chromosome by chromosome.
+ * Records are not validated, they should be read by SamInput.next(Iterator).
+ */
+class IndexedRecords implements Iterator<SAMRecord> {
+	private final SamReader in;
+	private final ArrayList<String> chrs;
+	private int chr = 0;
+	private SAMRecordIterator it = null;
+	
+	/**
+	 * @param in reader opened by SamInput.open
+	 * @param chrs in order of header
+	 */
+	IndexedRecords(SamReader in,ArrayList<String> chrs) {
+		this.in = in;
+		this.chrs = chrs;
+	}
+	
+	public boolean hasNext() {
+		while(it == null || !it.hasNext()) {
+			if(it != null)
+				it.close();
+			if(chr == chrs.size()) {
+				it = null;
+				return false;
+			}
+			it = in.query(chrs.get(chr++), 0, 0, false);
+		}
+		return true;
+	}
+	
+	/**
+	 * @return next record or null if there are no more records (as SamInput does)
+	 */
+	public SAMRecord next() {
+		return hasNext()?it.next():null;
+	}
+}
+
 public class Annotator {
 	GFFPrinter gffp;
-	SamReader in;
-	SAMRecordIterator iter;
+	Iterator<SAMRecord> in;
+	//null if all chromosomes are annotated
+	Shard shard;
 	SAMRecord cur;
 	String chr_id;
 	ChrCoverage chrCov;
@@ -38,13 +85,60 @@ public class Annotator {
 	Annotation foreignAnn = null;
 	HashSet<String> chrs = new HashSet<>();
 	HashMap<String,ArrayList<Intron>> forcedIntrons;
+	final AnnotateOptions opt;
+	//null if journal is not used
+	Journal journal;
+	FileOutputStream gff_out;
 
 	public Annotator() throws IOException, GFFException {
-		gffp = new GFFPrinter(new PrintStream(Settings.S().getString(Settings.ANN_OUT)));
-		gffp.printAnnotateHeader();
-		in = SamReaderFactory.makeDefault().open(SamInputResource.of(new BufferedInputStream(new FileInputStream(Settings.S().getString(Settings.IN)),10000000)));
-		iter = in.iterator();
-		cur = iter.next();
+		opt = new AnnotateOptions(Settings.S());
+		journal = Journal.get();
+		if(journal != null)
+			journal.checkSettings(Run.ANNOTATE, new String[] {"common","annotate"});
+		String[] last = journal == null?null:journal.last(Run.ANNOTATE);
+		String ann_out = Settings.S().getString(Settings.ANN_OUT);
+		if(last == null) {
+			gff_out = new FileOutputStream(ann_out);
+			gffp = new GFFPrinter(new PrintStream(gff_out));
+			gffp.printAnnotateHeader();
+		}else {
+			//output of finished chromosomes is kept, anything written after them is dropped
+			long length = Long.parseLong(last[0]);
+			RandomAccessFile r = new RandomAccessFile(ann_out, "rw");
+			if(r.length() < length) {
+				r.close();
+				Log.closeWithError("Output '"+ann_out+"' is shorter than recorded in journal, cannot resume", null);
+			}
+			r.setLength(length);
+			r.close();
+			gff_out = new FileOutputStream(ann_out, true);
+			gffp = new GFFPrinter(new PrintStream(gff_out));
+			gffp.setGeneNo(Integer.parseInt(last[1]));
+		}
+		SamInput sin = new SamInput(Settings.S().getString(Settings.IN), Settings.S().getInt(Settings.THREADS));
+		shard = Shard.get(sin.getFileHeader().getSequenceDictionary());
+		in = sin;
+		//chromosomes of other shards and annotated chromosomes of interrupted run are not read if there is index
+		if(shard != null || last != null) {
+			SamReader r = SamInput.open(new File(Settings.S().getString(Settings.IN)));
+			if(r.hasIndex()) {
+				sin.close();
+				ArrayList<String> todo = new ArrayList<>();
+				for(SAMSequenceRecord s : r.getFileHeader().getSequenceDictionary().getSequences()) {
+					if(shard != null && !shard.contains(s.getSequenceName()))
+						continue;
+					if(isDone(s.getSequenceName()))
+						chrs.add(s.getSequenceName());
+					else
+						todo.add(s.getSequenceName());
+				}
+				in = new IndexedRecords(r, todo);
+			}else if(shard != null) {
+				Log.closeWithError("Input file '"+Settings.S().getString(Settings.IN)+"' has no index, it is required to annotate shard of chromosomes ("+Settings.SHARD+")", null);
+			}else
+				r.close();
+		}
+		cur = SamInput.next(in);
 		fasta = new IndexedFastaSequenceFile(new File(Settings.S().getString(Settings.FASTA)));
 		if(!Settings.S().getString(Settings.ANN_FOREIGN).equals("-"))
 			foreignAnn = new Annotation(Settings.S().getString(Settings.ANN_FOREIGN));
@@ -66,13 +160,20 @@ public class Annotator {
 	}
 	
 	public void annotate() throws IOException{
-		do{
+		//shard could have no reads
+		while(cur != null) {
 			chr_id = cur.getReferenceName();
+			chrs.add(chr_id);
+			if(isDone(chr_id)) {
+				for(;cur != null && cur.getReferenceName().equals(chr_id);cur = SamInput.next(in));
+				continue;
+			}
 			Log.println(chr_id);
 			String seq =  new String(fasta.getSequence(chr_id).getBases());
-			chrCov = new ChrCoverage(chr_id, seq);
-			chrs.add(chr_id);
-		}while(_annotate());
+			chrCov = new ChrCoverage(chr_id, seq, opt);
+			_annotate();
+			checkpoint(chr_id);
+		}
 		
 		// add genes from foreign annotation from chrs that do not have coverage
 		if(foreignAnn != null || forcedIntrons != null){
@@ -83,8 +184,10 @@ public class Annotator {
 				annChrs = foreignAnn.getChrIDs();
 			annChrs = util.Util.diff(annChrs,chrs);
 			for(String chr_id : annChrs){
+				if((shard != null && !shard.contains(chr_id)) || isDone(chr_id))
+					continue;
 				String seq =  new String(fasta.getSequence(chr_id).getBases());
-				chrCov = new ChrCoverage(chr_id, seq);					
+				chrCov = new ChrCoverage(chr_id, seq, opt);					
 				if(forcedIntrons != null)
 					chrCov.setIntrons(forcedIntrons.get(chr_id));
 				else
@@ -93,21 +196,45 @@ public class Annotator {
 				Collections.sort(genes);
 				for(Gene g : genes)
 					gffp.printGene(g);
+				checkpoint(chr_id);
 			}
 		}
 		gffp.close();
 		Log.printStat();
 	}
 	
-	private boolean _annotate() throws FileNotFoundException{
+	/**
+	 * @param chr_id
+	 * @return true if chromosome is recorded as annotated in journal (by interrupted run)
+	 */
+	private boolean isDone(String chr_id) {
+		if(journal == null || journal.get(Run.ANNOTATE, chr_id) == null)
+			return false;
+		Log.println(chr_id+" is already annotated (see "+Settings.JOURNAL+"), skipped");
+		return true;
+	}
+	
+	/**
+	 * writes genes of annotated chromosome to disk and records output length and gene number in journal
+	 * @param chr_id
+	 * @throws IOException
+	 */
+	private void checkpoint(String chr_id) throws IOException {
+		if(journal == null)
+			return;
+		gffp.flush();
+		gff_out.getFD().sync();
+		journal.done(Run.ANNOTATE, chr_id, ""+gff_out.getChannel().size(), ""+gffp.getGeneNo());
+	}
+	
+	private void _annotate() throws FileNotFoundException{
 		for(;;){
-			Log.addStat(Log.TOTAL_READS, 1);
 			chrCov.read(cur);
-			cur = iter.next();
+			cur = SamInput.next(in);
 			if(cur == null || !cur.getReferenceName().equals(chr_id))
 				break;
 		}
-		if(Settings.S().getBoolean(Settings.FILL_NS))
+		if(opt.fill_ns)
 			chrCov.fillCovInNs();
 		//first add annotation, then filter introns.
 		if(foreignAnn != null && forcedIntrons == null)
@@ -120,7 +247,6 @@ public class Annotator {
 		for(Gene g : genes)
 			gffp.printGene(g);
 		System.gc();
-		return cur != null;
 	}
 	
 }
@@ -32,9 +32,12 @@ public class ChrCoverage {
 	long readLen=0;
 	long readCnt=0;
 	int minOverhang;
+	final AnnotateOptions opt;
+	final MapIntervals buf = new MapIntervals(); //mapped blocks of current read
 	
 
-	public ChrCoverage(String chr_id,String seq) throws IOException{
+	public ChrCoverage(String chr_id,String seq,AnnotateOptions opt) throws IOException{
+		this.opt = opt;
 		this.seq = seq.toUpperCase();
 		peCov = new int[seq.length()+1];
 		piCov = new int[seq.length()+1];
@@ -49,7 +52,7 @@ public class ChrCoverage {
 		site2strand.put("CTAC", -1);
 		site2strand.put("CTGC", -1);
 		site2strand.put("GTAT", -1);
-		minOverhang = Settings.S().getInt(Settings.JUNC_OVERHANG);
+		minOverhang = opt.junc_overhang;
 	}
 	
 	private int getTotalCov(int[] c,int f,int t){
@@ -90,8 +93,8 @@ public class ChrCoverage {
 		return introns.keySet();
 	}
 	
-	private void addCov(int[] ecov,int[] icov,int[] inters,Intron[] addedIntrons){
-		for(int i=0;i<inters.length;i+=2){
+	private void addCov(int[] ecov,int[] icov,int[] inters,int len,Intron[] addedIntrons){
+		for(int i=0;i<len;i+=2){
 			for(int j=inters[i];j<=inters[i+1];j++)
 				ecov[j]++;
 			if(i != 0 && addedIntrons[i/2-1] != null){//do not add intronic coverage if read was not used for for junctions due to low overhang
@@ -165,36 +168,37 @@ public class ChrCoverage {
 	}
 
 	public void read(SAMRecord r) {
-		if(!ReadCounter.accept(r))
+		if(!ReadCounter.accept(r, opt.reads))
 			return;
 		readLen += r.getReadLength();
 		readCnt++;
-		Log.addStat(Log.USED_READS, 1);
-		int[] inters = Util.getMapIntervals(r);
-		int strand = Settings.S().getInt(Settings.STRANDED)*(r.getReadNegativeStrandFlag()?-1:1);
-		if(Settings.S().getInt(Settings.PAIRED) == 1 && r.getReadPairedFlag() && !r.getFirstOfPairFlag())
+		Log.addStat(Stat.USED_READS, 1);
+		int len = buf.decode(r);
+		int[] inters = buf.data;
+		int strand = opt.reads.stranded*(r.getReadNegativeStrandFlag()?-1:1);
+		if(opt.reads.paired && r.getReadPairedFlag() && !r.getFirstOfPairFlag())
 			strand = -strand;
 		//parse junctions, if exist
-		Intron[] cintrons = new Intron[inters.length/2-1];
-		if(inters.length>2){
-			Log.addStat(Log.JUNCTIONS_CNT, 1);
-			int len = 0;
-			for(int i =1;i<inters.length-1;i+=2){
+		Intron[] cintrons = new Intron[len/2-1];
+		if(len>2){
+			Log.addStat(Stat.JUNCTIONS_CNT, 1);
+			int rlen = 0;
+			for(int i =1;i<len-1;i+=2){
 				String ss = getSeq(inters[i]+1,inters[i]+2)+getSeq(inters[i+1]-2,inters[i+1]-1);
 				Integer cstrand = getStrandByIntronSites(ss);
 				if(cstrand == null || (strand != 0 && strand != cstrand)){
-					Log.addStat(Log.BAD_JUNCTIONS_CNT, 1);
+					Log.addStat(Stat.BAD_JUNCTIONS_CNT, 1);
 					Log.throwUncrucialExc("Read "+r.getReadName()+" has wrong splice sites.\n"+
 							"Strand="+strand+". Sites (intron="+(inters[i]+1)+"-"+(inters[i+1]-1)+")="+ss);
 					return;
 				}
 				if(strand == 0)
 					strand = cstrand;
-				len += inters[i] - inters[i-1] +1;
-				int oh = Math.min(len, r.getReadLength()-len);
+				rlen += inters[i] - inters[i-1] +1;
+				int oh = Math.min(rlen, r.getReadLength()-rlen);
 				if(oh >= minOverhang){//reads with low overhang are simply not used
 					cintrons[(i-1)/2] = new Intron(inters[i]+1, inters[i+1]-1, strand);
-					cintrons[(i-1)/2].addRead(r.getReadLength(),len, inters[0],r.getAttribute("NH") == null || r.getIntegerAttribute("NH") == 1);
+					cintrons[(i-1)/2].addRead(r.getReadLength(),rlen, inters[0],r.getAttribute("NH") == null || r.getIntegerAttribute("NH") == 1);
 				}
 			}
 			for(Intron i : cintrons){
@@ -209,17 +213,17 @@ public class ChrCoverage {
 				
 			}
 		}
-		int rstrand = Settings.S().getInt(Settings.STRANDED)*(r.getReadNegativeStrandFlag()?-1:1);
+		int rstrand = opt.reads.stranded*(r.getReadNegativeStrandFlag()?-1:1);
 		//add coverage
 		switch(strand){
 		case 1:
-			addCov(rstrand==0?ueCov:peCov,piCov,inters,cintrons);
+			addCov(rstrand==0?ueCov:peCov,piCov,inters,len,cintrons);
 			break;
 		case -1:
-			addCov(rstrand==0?ueCov:meCov,miCov,inters,cintrons);
+			addCov(rstrand==0?ueCov:meCov,miCov,inters,len,cintrons);
 			break;
 		case 0:
-			addCov(ueCov,null,inters,cintrons);
+			addCov(ueCov,null,inters,len,cintrons);
 		}
 	}
 	
@@ -275,13 +279,13 @@ public class ChrCoverage {
 			}else{
 				if(start != -1){
 					gap++;
-					if(gap > Settings.S().getInt(Settings.MAX_COV_GAP) || i == ecov.length-1){
+					if(gap > opt.max_cov_gap || i == ecov.length-1){
 						int stop = i - gap;
 						// extend gene using unstranded coverage (if current coverage is stranded)
-						if(strand != 0 && stop-start+1 >= Settings.S().getInt(Settings.MIN_SINGLE_EXON_GENE_LENGTH)){
+						if(strand != 0 && stop-start+1 >= opt.min_single_exon_gene_length){
 							//look backward
 							gap = 0;
-							for(;start>0 && gap <= Settings.S().getInt(Settings.MAX_COV_GAP) ;start--)
+							for(;start>0 && gap <= opt.max_cov_gap ;start--)
 								if(uecov[start] + ecov[start]==0)
 									gap++;
 								else
@@ -290,7 +294,7 @@ public class ChrCoverage {
 							start = Math.max(1, start);
 							//look forward
 							gap = 0;
-							for(;stop<ecov.length && gap <= Settings.S().getInt(Settings.MAX_COV_GAP) ;stop++)
+							for(;stop<ecov.length && gap <= opt.max_cov_gap ;stop++)
 								if(uecov[stop] + ecov[stop]==0)
 									gap++;
 								else
@@ -308,9 +312,9 @@ public class ChrCoverage {
 								gcov += ecov[j];
 						}
 						// add gene if it is ok
-						if(stop-start+1 >= Settings.S().getInt(Settings.MIN_SINGLE_EXON_GENE_LENGTH) &&
-						   gcov/(stop-start+1) >=  Settings.S().getDouble(Settings.MIN_SINGLE_EXON_GENE_COV) &&
-						   gcov/(gcov+egcov) >= Settings.S().getDouble(Settings.SITE_USAGE_FREQ) &&
+						if(stop-start+1 >= opt.min_single_exon_gene_length &&
+						   gcov/(stop-start+1) >=  opt.min_single_exon_gene_cov &&
+						   gcov/(gcov+egcov) >= opt.site_usage_freq &&
 						   //probably 0.5 should be a parameter...
 						   getNproportion(start,stop) < 0.5){
 							Gene g = new Gene(start, stop, strand, chr_id);
@@ -454,7 +458,7 @@ public class ChrCoverage {
 		double min_cov = 0;
 		double sum = 0;
 		int gap = 0;
-		int win = Settings.S().getInt(Settings.COV_WIN_LEN);
+		int win = opt.cov_win_len;
 		int dir = from<=to?1:-1;
 		//curr,next
 		Integer avg_cov_end = null;
@@ -464,14 +468,14 @@ public class ChrCoverage {
 		for(int i=from;;i+=dir){
 			sum+=cov[i];
 			//find first position where average coverage become to low (if total average cov is low, this position will be returned)
-			if(avg_cov_end == null && sum/(dir*(i-from)+1) < Settings.S().getDouble(Settings.MIN_COV))
+			if(avg_cov_end == null && sum/(dir*(i-from)+1) < opt.min_cov)
 				avg_cov_end = i;
 			if(cov[i] <= min_cov)
 				gap++;
 			else
 				gap = 0;
 			//cut by gap
-			if(gap>Settings.S().getInt(Settings.MAX_COV_GAP))
+			if(gap>opt.max_cov_gap)
 				return i-dir*gap;
 			
 			//set smoothed coverage
@@ -486,13 +490,13 @@ public class ChrCoverage {
 					if(min_win_cov > v){
 						min_win_cov = v;
 					}
-					if(max_win_cov/min_win_cov > Settings.S().getDouble(Settings.MAX_COV_STEP))
+					if(max_win_cov/min_win_cov > opt.max_cov_step)
 						return i - dir*(win/2+1);
 				}
 			}
 			if(i == to) break; //because i don't want to check dir..
 		}
-		if(sum/(dir*(to-from)+1) >= Settings.S().getDouble(Settings.MIN_COV))
+		if(sum/(dir*(to-from)+1) >= opt.min_cov)
 			return to;
 		return avg_cov_end;
 	}
@@ -520,15 +524,15 @@ public class ChrCoverage {
 			if(tmp == null)
 				tmp = i;
 			
-			tmp.setMaxOverhang(Settings.S().getInt(Settings.JUNC_OVERHANG) );
-			tmp.setPosNo(Settings.S().getInt(Settings.INDEP_POS));
-			tmp.setCov(tmp.getCov()+Settings.S().getDouble(Settings.FOREIGN_JUNC_COV));
+			tmp.setMaxOverhang(opt.junc_overhang );
+			tmp.setPosNo(opt.indep_pos);
+			tmp.setCov(tmp.getCov()+opt.foreign_junc_cov);
 			introns.put(tmp, tmp);
 		}
 		
-		double siteFreq = Settings.S().getDouble(Settings.SITE_USAGE_FREQ); //I do not want to skip exons from external annotation due it low coverage 
+		double siteFreq = opt.site_usage_freq; //I do not want to skip exons from external annotation due it low coverage 
 		siteFreq /= (1-siteFreq);
-		int minCov = (int) Settings.S().getDouble(Settings.MIN_SINGLE_EXON_GENE_COV) + 1;
+		int minCov = (int) opt.min_single_exon_gene_cov + 1;
 		for(Gene g : a.getGenes()){
 			for(int i =0;i<g.getSegCount();i++){
 				Seg s = g.getSeg(i);
@@ -557,8 +561,8 @@ public class ChrCoverage {
 	public void filterIntrons(){
 		HashSet<Intron> tmp = new HashSet<>(introns.keySet());
 		for(Intron i : tmp){
-			if(i.getMaxOverhang() < Settings.S().getInt(Settings.JUNC_OVERHANG) || //since now i do not use reads with low overhang, it could be removed. not it is here just for hystorical reasons
-					i.getPosNo() < Settings.S().getInt(Settings.INDEP_POS)){
+			if(i.getMaxOverhang() < opt.junc_overhang || //since now i do not use reads with low overhang, it could be removed. not it is here just for hystorical reasons
+					i.getPosNo() < opt.indep_pos){
 				introns.remove(i);
 				continue;
 			}
@@ -567,7 +571,7 @@ public class ChrCoverage {
 			double f2 = i.getCov()/((i.strand==1?peCov:meCov)[i.stop ]+(i.strand==1?piCov:miCov)[i.stop ] + ueCov[i.stop ]);
 			System.out.println("filter inton ("+i+"): "+i.getCov()+", "+f1 +" ("+(i.strand==1?peCov:meCov)[i.start]+", "+(i.strand==1?piCov:miCov)[i.start] + ", "+ ueCov[i.start]+")"+
 						", "+f2 +" ("+(i.strand==1?peCov:meCov)[i.stop ]+", "+(i.strand==1?piCov:miCov)[i.stop ]+", " + ueCov[i.stop ]+")");
-			if(f1< Settings.S().getDouble(Settings.SITE_USAGE_FREQ) || f2 < Settings.S().getDouble(Settings.SITE_USAGE_FREQ) )
+			if(f1< opt.site_usage_freq || f2 < opt.site_usage_freq )
 				introns.remove(i);
 		}
 	}
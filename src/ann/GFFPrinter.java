@@ -1,5 +1,9 @@
 package ann;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -16,6 +20,8 @@ import util.bio.Intron;
 import util.bio.Seg;
 
 public class GFFPrinter {
+	//id_prefix of worker processes, such ids are replaced when outputs of workers are merged
+	public static final String SHARD_ID_PREFIX = "~shard~";
 	private PrintStream out;
 	private int gene_id = 1,seg_id,int_id;
 	private String zeros = "000000";
@@ -44,6 +50,21 @@ public class GFFPrinter {
 		out.close();
 	}
 	
+	public void flush(){
+		out.flush();
+	}
+	
+	/**
+	 * @return number that will be used for id of the next gene without id
+	 */
+	int getGeneNo(){
+		return gene_id;
+	}
+	
+	void setGeneNo(int gene_id){
+		this.gene_id = gene_id;
+	}
+	
 	private String addZeros(int i){
 		String ii = ""+i;
 		if(ii.length()>=zeros.length())
@@ -95,4 +116,43 @@ public class GFFPrinter {
 			type = "gene";
 		out.println(chr_id+"\t"+Settings.SHORT_VERSION+"\t"+type+"\t"+i.start+"\t"+i.stop+"\t0\t"+(i.strand==0?".":(i.strand==1?"+":"-"))+"\t.\t"+attr);
 	}
+	
+	/**
+	 * Joins annotations made by worker processes for shards of chromosomes (see Shard). 
+	 * Genes that got ids from SHARD_ID_PREFIX (and their segments and introns) get new ids by their position in joined annotation,
+	 * so they are numbered as if whole annotation was printed by one GFFPrinter.
+	 * @param parts files of shards in shard order, they are deleted
+	 * @param out
+	 * @throws IOException
+	 */
+	public static void merge(String[] parts,String out) throws IOException {
+		GFFPrinter p = new GFFPrinter(new PrintStream(out));
+		p.printAnnotateHeader();
+		String prefix = Settings.S().getString(Settings.ID_PREFIX);
+		for(String f : parts) {
+			BufferedReader in = new BufferedReader(new FileReader(f), 1000000);
+			String old = null;
+			String gid = null;
+			for(String l = in.readLine();l != null;l = in.readLine()) {
+				if(l.startsWith("##"))
+					continue;
+				String[] t = l.split("\t");
+				if(t[2].equals("gene")) {
+					String id = t[8].substring(t[8].indexOf("gene_id=")+8);
+					if(id.startsWith(SHARD_ID_PREFIX)) {
+						old = "="+id;
+						gid = "="+prefix+"G"+p.addZeros(p.gene_id);
+					}else
+						old = null;
+					p.gene_id++;
+				}
+				if(old != null)
+					l = l.replace(old, gid);
+				p.out.println(l);
+			}
+			in.close();
+			new File(f).delete();
+		}
+		p.close();
+	}
 }
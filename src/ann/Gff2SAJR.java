@@ -1,17 +1,28 @@
 package ann;
 
+import java.io.BufferedOutputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 
 import util.Log;
 import util.Settings;
+import util.Util;
+import util.bio.GFFChunkReader;
 import util.bio.GFFException;
 import util.bio.GFFeature;
 import util.bio.GFFParser;
@@ -19,41 +30,100 @@ import util.bio.Gene;
 import util.bio.Intron;
 import util.bio.Seg;
 
+/**
+ * Converts foreign annotation into sajr format. Chromosomes (gff2sajr) and genes (gff32sajr) are converted by 'threads' threads,
+ * genes are printed in the same order (and so output is the same) as by single thread.
+ */
 public class Gff2SAJR {
+	//genes per task of exon2seg
+	private static final int GENE_BATCH = 1000;
+	private final int threads = Settings.S().getInt(Settings.THREADS);
+	//null if threads is 1
+	private final ExecutorService pool;
+	
+	private Gff2SAJR() {
+		if(threads > 1)
+			pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "gff2sajr");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		else
+			pool = null;
+	}
 
 	public  static void gff2sajr() throws IOException,GFFException {
 		Gff2SAJR t = new Gff2SAJR();
 		t.gff2sajr(Settings.S().getString(Settings.ANN_FOREIGN));
+		t.shutdown();
 	}
 	
 	public  static void gff32sajr() throws IOException,GFFException {
 		Gff2SAJR t = new Gff2SAJR();
 		t.gff32sajr(Settings.S().getString(Settings.ANN_FOREIGN));
+		t.shutdown();
+	}
+	
+	private void shutdown() {
+		if(pool != null)
+			pool.shutdown();
+	}
+	
+	private static GFFPrinter openOutput() throws FileNotFoundException {
+		return new GFFPrinter(new PrintStream(new BufferedOutputStream(new FileOutputStream(Settings.S().getString(Settings.ANN_OUT)), 1<<16)));
+	}
+	
+	/**
+	 * runs task by pool, or by current thread if there is no pool
+	 * @param task
+	 * @return
+	 */
+	private <T> Future<T> submit(Callable<T> task) {
+		if(pool != null)
+			return pool.submit(task);
+		FutureTask<T> r = new FutureTask<>(task);
+		r.run();
+		return r;
+	}
+	
+	private static <T> T get(Future<T> f) throws IOException, GFFException {
+		try {
+			return f.get();
+		}catch(InterruptedException e) {
+			throw new IOException(e);
+		}catch(ExecutionException e) {
+			if(e.getCause() instanceof GFFException)
+				throw (GFFException)e.getCause();
+			if(e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			if(e.getCause() instanceof RuntimeException)
+				throw (RuntimeException)e.getCause();
+			throw new IOException(e.getCause());
+		}
 	}
 	
 	private void gff2sajr(String in) throws IOException, GFFException {
-		GFFPrinter out = new GFFPrinter(new PrintStream(Settings.S().getString(Settings.ANN_OUT)));
+		GFFPrinter out = openOutput();
 		out.printCuff2SAJRHeader();
-		String[] black_list = Settings.S().getString(Settings.GENE_BLACK_LIST).split("@");
+		final String[] black_list = Settings.S().getString(Settings.GENE_BLACK_LIST).split("@");
 		Arrays.sort(black_list);
 		
 		// load whole gtf
-		GFFParser gffp = new GFFParser(in);
-		ArrayList<GFFeature> gffa = new ArrayList<GFFeature>();
-		for(GFFeature f=gffp.next();f != null;f=gffp.next())
-			gffa.add(f);
-		gffp.close();
+		ArrayList<GFFeature> gffa = GFFParser.readAll(in, threads);
 		//sort
-		Collections.sort(gffa,new Comparator<GFFeature>() {
+		Util.sort(gffa,new Comparator<GFFeature>() {
 			public int compare(GFFeature o1, GFFeature o2) {
 					return o1.seqname.compareTo(o2.seqname);
 			}
-		});
+		},threads);
 		
-		// convert
+		// convert, chromosomes are converted in parallel and printed in order
 		ArrayList<GFFeature> gff = new ArrayList<>();
 		boolean has_transc_feature = true;
 		boolean has_exon_no_feature = true;
+		ArrayList<Future<ArrayList<Gene>>> chr_genes = new ArrayList<>();
 		
 		String chr = null;
 		HashSet<String> chr_ids = new HashSet<>();
@@ -70,9 +140,14 @@ public class Gff2SAJR {
 			}
 			
 			if(f == null || !chr.equals(f.seqname)){
-				gff2sajr_chr(gff,has_transc_feature,has_exon_no_feature,black_list,out);
-				gff.clear();
-				System.gc();
+				final ArrayList<GFFeature> chr_gff = gff;
+				final boolean transc = has_transc_feature,exon_no = has_exon_no_feature;
+				chr_genes.add(submit(new Callable<ArrayList<Gene>>() {
+					public ArrayList<Gene> call() throws GFFException {
+						return gff2sajr_chr(chr_gff,transc,exon_no,black_list);
+					}
+				}));
+				gff = new ArrayList<>();
 				if(f == null)
 					break;
 				has_transc_feature = true;
@@ -87,19 +162,25 @@ public class Gff2SAJR {
 				has_exon_no_feature = has_transc_feature && f.getAttr("exon_number") != null;
 			}
 		}
+		gffa = null;
+		for(int i=0;i<chr_genes.size();i++) {
+			for(Gene g : get(chr_genes.get(i)))
+				out.printGene(g);
+			chr_genes.set(i, null);
+		}
 		out.close();
 	}
 	
 	/**
 	 * converts gff (gtf, cufflincs output for example) into sajr format for single chr
 	 * @param gff
-	 * @throws FileNotFoundException 
+	 * @return genes of the chromosome in order they should be printed
 	 */
-	private void gff2sajr_chr(ArrayList<GFFeature> gff,boolean has_transc_feature,final boolean has_exon_no_feature,String[] black_list,GFFPrinter out) throws GFFException, FileNotFoundException{
+	private ArrayList<Gene> gff2sajr_chr(ArrayList<GFFeature> gff,boolean has_transc_feature,final boolean has_exon_no_feature,String[] black_list) throws GFFException{
 		HashMap<String,Gene> genes = new HashMap<>();
 		// sort it if possible
 		if(has_transc_feature){
-			Collections.sort(gff,new Comparator<GFFeature>() {
+			Util.sort(gff,new Comparator<GFFeature>() {
 				public int compare(GFFeature o1, GFFeature o2) {
 					int transc_comp = o1.getAttr("transcript_id").compareTo(o2.getAttr("transcript_id"));
 					if(transc_comp != 0) 
@@ -116,7 +197,7 @@ public class Gff2SAJR {
 						return o1.start - o2.start;
 					throw new RuntimeException("something went crazy in gff sorting!"); 
 				}
-			});
+			},threads);
 		}
 		// convert
 		int line = 1;
@@ -156,78 +237,102 @@ public class Gff2SAJR {
 			}
 			prev=curr;
 		}
-		save(out,genes);
+		return sort(exon2seg(new ArrayList<>(genes.values())));
 	}
 	
 	private void gff32sajr(String in) throws IOException, GFFException {
 		String[] black_list = Settings.S().getString(Settings.GENE_BLACK_LIST).split("@");
 		Arrays.sort(black_list);
 		HashMap<String,Gene> genes = new HashMap<>();
-		GFFParser p = new GFFParser(in);
+		//lines are parsed in parallel, but genes are made in order of file
+		GFFChunkReader p = new GFFChunkReader(in, threads);
 		int line = 1;
 		GFFeature prev = null;
 		HashMap<String,Gene> mrna2gene = new HashMap<>();
-		for(GFFeature curr = p.next();curr != null;curr = p.next()) {
-			line++;
-			switch(curr.feature) {
-			case "transcript":
-			case "mRNA":
-				Gene g = genes.get(curr.getAttr("Parent"));
-				if(g == null) {
-					g = new Gene(0, Integer.MAX_VALUE, curr.strand, curr.seqname,curr.getAttr("Parent"));
-					genes.put(g.getId(), g);
-				}
-				prev = null;
-				mrna2gene.put(curr.getAttr("ID"), g);
-				break;
-			case "exon":
-				g =  mrna2gene.get(curr.getAttr("Parent"));
-				if(g == null)
-					continue;
-				g.addSeg(new Seg(curr.start, curr.stop, curr.strand));
-				if(prev != null) {
-					if(!curr.getAttr("Parent").equals(prev.getAttr("Parent")))
-						throw new GFFException("Sequential exons are from different mRNAa at line "+line, curr.toString());
-					if(curr.start <= prev.stop)
-						if(curr.strand == 1)
-							throw new GFFException("Sequential exons do not follow each other in genomic coordinates at line "+line, curr.toString());
+		for(ArrayList<GFFeature> chunk = p.next();chunk != null;chunk = p.next()) {
+			for(GFFeature curr : chunk) {
+				line++;
+				switch(curr.feature) {
+				case "transcript":
+				case "mRNA":
+					Gene g = genes.get(curr.getAttr("Parent"));
+					if(g == null) {
+						g = new Gene(0, Integer.MAX_VALUE, curr.strand, curr.seqname,curr.getAttr("Parent"));
+						genes.put(g.getId(), g);
+					}
+					prev = null;
+					mrna2gene.put(curr.getAttr("ID"), g);
+					break;
+				case "exon":
+					g =  mrna2gene.get(curr.getAttr("Parent"));
+					if(g == null)
+						continue;
+					g.addSeg(new Seg(curr.start, curr.stop, curr.strand));
+					if(prev != null) {
+						if(!curr.getAttr("Parent").equals(prev.getAttr("Parent")))
+							throw new GFFException("Sequential exons are from different mRNAa at line "+line, curr.toString());
+						if(curr.start <= prev.stop)
+							if(curr.strand == 1)
+								throw new GFFException("Sequential exons do not follow each other in genomic coordinates at line "+line, curr.toString());
+							else
+								g.addIntron(new Intron(curr.stop+1, prev.start-1, curr.strand));
 						else
-							g.addIntron(new Intron(curr.stop+1, prev.start-1, curr.strand));
-					else
-						g.addIntron(new Intron(prev.stop+1, curr.start-1, curr.strand));
+							g.addIntron(new Intron(prev.stop+1, curr.start-1, curr.strand));
+					}
+					prev=curr;
+					break;
+				default:
+					break;
 				}
-				prev=curr;
-				break;
-			default:
-				break;
 			}
 		}
 		p.close();
 		save(genes);
 	}
 	
-	private void save(HashMap<String,Gene> genes) throws FileNotFoundException {
-		GFFPrinter p = new GFFPrinter(new PrintStream(Settings.S().getString(Settings.ANN_OUT)));
+	private void save(HashMap<String,Gene> genes) throws IOException, GFFException {
+		final ArrayList<Gene> gs = new ArrayList<>(genes.values());
+		//genes are converted by batches
+		ArrayList<Future<ArrayList<Gene>>> parts = new ArrayList<>();
+		for(int i=0;i<gs.size();i+=GENE_BATCH) {
+			final int from = i;
+			parts.add(submit(new Callable<ArrayList<Gene>>() {
+				public ArrayList<Gene> call() {
+					return exon2seg(gs.subList(from, Math.min(gs.size(), from+GENE_BATCH)));
+				}
+			}));
+		}
+		ArrayList<Gene> segs = new ArrayList<>(gs.size());
+		for(Future<ArrayList<Gene>> f : parts)
+			segs.addAll(get(f));
+		GFFPrinter p = openOutput();
 		p.printCuff2SAJRHeader();
-		save(p,genes);
+		for(Gene g : sort(segs))
+			p.printGene(g);
 		p.close();
 	}
 	
-	private void save(GFFPrinter p,HashMap<String,Gene> genes) throws FileNotFoundException {
-		ArrayList<Gene> gs = new ArrayList<>(genes.values());
-		for(int i=0;i<gs.size();i++) {
-			gs.set(i, gs.get(i).exon2seg());
-		}
-		Collections.sort(gs,new Comparator<Gene>() {
+	private static ArrayList<Gene> exon2seg(List<Gene> genes) {
+		ArrayList<Gene> r = new ArrayList<>(genes.size());
+		for(Gene g : genes)
+			r.add(g.exon2seg());
+		return r;
+	}
+	
+	/**
+	 * sorts genes in order of output: by chromosomes and positions
+	 * @param gs
+	 * @return gs
+	 */
+	private ArrayList<Gene> sort(ArrayList<Gene> gs) {
+		Util.sort(gs,new Comparator<Gene>() {
 
 			public int compare(Gene o1, Gene o2) {
 				if(o1.chr_id.equals(o2.chr_id))
 					return o1.compareTo(o2);
 				return o1.chr_id.compareTo(o2.chr_id);
 			}
-		});
-		for(Gene g : gs) {
-			p.printGene(g);
-		}
+		},threads);
+		return gs;
 	}
 }
@@ -0,0 +1,48 @@
+package rc;
+
+import htsjdk.samtools.SAMRecord;
+import util.CountOptions;
+import util.MapIntervals;
+
+/**
+ * Part of SAMRecord that is needed to count read: decoded once, so record could be decoded by one thread and counted by another.
+ */
+class Alignment {
+	final String name;
+	final String chr;
+	final int start;
+	final int stop;
+	final String mate_chr;
+	final int mate_start;
+	final boolean paired;
+	final boolean first;
+	final boolean negative;
+	//XS attribute, 0 if absent
+	final char xs;
+	//true if read should be counted together with its mate
+	final boolean pair;
+	//mapped blocks
+	final int[] inters;
+	
+	/**
+	 * @param r accepted record
+	 * @param buf buffer to decode mapped blocks, could be reused for next record
+	 * @param opt
+	 */
+	public Alignment(SAMRecord r,MapIntervals buf,CountOptions opt) {
+		name = r.getReadName();
+		chr = r.getReferenceName();
+		start = r.getAlignmentStart();
+		mate_chr = r.getMateReferenceName();
+		mate_start = r.getMateAlignmentStart();
+		paired = r.getReadPairedFlag();
+		first = paired && r.getFirstOfPairFlag();
+		negative = r.getReadNegativeStrandFlag();
+		Character x = r.getCharacterAttribute("XS");
+		xs = x == null?0:x;
+		pair = ReadCounter.countAsPair(r, opt);
+		buf.decode(r);
+		inters = buf.toArray();
+		stop = inters.length == 0?start-1:inters[inters.length-1];
+	}
+}
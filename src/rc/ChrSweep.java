@@ -0,0 +1,45 @@
+package rc;
+
+import java.util.HashSet;
+
+import util.Log;
+import util.bio.ChrAnnotation;
+
+/**
+ * Follows chromosomes of input sorted by coordinates. When reads of the next chromosome come,
+ * the previous one is done: its counts are sent to output and its annotation is released.
+ * Reads of chromosome that is already done (input is not sorted in fact) are not counted.
+ */
+class ChrSweep {
+	private final CountWriter out;
+	private ChrAnnotation last = null;
+	private HashSet<String> done = new HashSet<>();
+	//done chromosomes that reads were skipped, to warn once per chromosome
+	private HashSet<String> skipped = new HashSet<>();
+	
+	ChrSweep(CountWriter out) {
+		this.out = out;
+	}
+	
+	/**
+	 * @param c chromosome of the next read
+	 * @return false if chromosome is already done, the read should be skipped then
+	 */
+	boolean next(ChrAnnotation c) {
+		if(c == last)
+			return true;
+		if(done.contains(c.getID())) {
+			if(skipped.add(c.getID()))
+				Log.throwUncrucialExc("Reads of chromosome '"+c.getID()+"' are met after reads of other chromosomes while input is sorted by coordinates. " +
+						"Counts of the chromosome are already written, these reads are skipped.");
+			return false;
+		}
+		if(last != null) {
+			done.add(last.getID());
+			last.release();
+			out.done(last.getID());
+		}
+		last = c;
+		return true;
+	}
+}
@@ -0,0 +1,363 @@
+package rc;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+
+import util.Log;
+import util.TextBuffer;
+import util.bio.ChrAnnotation;
+import util.bio.Counts;
+import util.bio.Gene;
+import util.bio.Intron;
+
+/**
+ * Binary multi-sample count matrix. It consists of two files:
+ * <ul>
+ * <li>base.dict - feature dictionary, tab-delimited lines of feature type (gene, segment or intron) and id.
+ * Row of feature is its number among features of the same type.</li>
+ * <li>base.counts - 8 bytes magic followed by one block per sample. Block is
+ * int name length, name (UTF-8, padded by zeros to multiple of 8), int number of genes, segments and introns, int 0,
+ * then longs: gene reads, segment inclusion reads, segment exclusion reads and intron reads by rows.
+ * All numbers are little-endian.</li>
+ * </ul>
+ * Samples are appended without rewriting existing blocks, new features are added to the end of dictionary,
+ * so rows that are beyond block of a sample have zero reads in it.
+ * Blocks are memory mapped by reader, so values could be accessed by sample or by feature without parsing.
+ */
+public class CountMatrix {
+	public static enum Feature {gene,segment,intron}
+
+	/**
+	 * Vectors of sample block
+	 */
+	public static enum Value {
+		GENE(Feature.gene),SEG_INCLUSION(Feature.segment),SEG_EXCLUSION(Feature.segment),INTRON(Feature.intron);
+		public final Feature feature;
+		private Value(Feature f) {
+			feature = f;
+		}
+	}
+
+	private static final byte[] MAGIC = {'S','A','J','R','C','N','T','1'};
+	//feature dictionaries that are already loaded by writer, by matrix base name
+	private static final HashMap<String, CountMatrix> dicts = new HashMap<>();
+
+	private final String base;
+	private long dict_length = 0;
+	private ArrayList<ArrayList<String>> ids = new ArrayList<>();
+	private ArrayList<HashMap<String, Integer>> rows = new ArrayList<>();
+	private ArrayList<String> samples = new ArrayList<>();
+	//rows of each feature type by samples
+	private ArrayList<int[]> sizes = new ArrayList<>();
+	private ArrayList<LongBuffer> blocks = new ArrayList<>();
+
+	private CountMatrix(String base) {
+		this.base = base;
+		for(int i=0;i<Feature.values().length;i++) {
+			ids.add(new ArrayList<String>());
+			rows.add(new HashMap<String, Integer>());
+		}
+	}
+
+	/**
+	 * opens matrix for reading
+	 * @param base
+	 * @return
+	 * @throws IOException
+	 */
+	public static CountMatrix open(String base) throws IOException {
+		CountMatrix m = new CountMatrix(base);
+		//dictionary is written before block, so it is read after blocks to include all their rows
+		RandomAccessFile f = new RandomAccessFile(base+".counts", "r");
+		try {
+			m.readBlocks(f.getChannel(), true);
+		}finally {
+			f.close();
+		}
+		m.readDict();
+		return m;
+	}
+
+	public int getSampleCount() {
+		return samples.size();
+	}
+
+	public String getSample(int sample) {
+		return samples.get(sample);
+	}
+
+	public int getRowCount(Feature f) {
+		return ids.get(f.ordinal()).size();
+	}
+
+	/**
+	 * @param f
+	 * @param id
+	 * @return row of feature, or -1 if there is no such feature
+	 */
+	public int getRow(Feature f,String id) {
+		Integer r = rows.get(f.ordinal()).get(id);
+		return r == null?-1:r;
+	}
+
+	public String getId(Feature f,int row) {
+		return ids.get(f.ordinal()).get(row);
+	}
+
+	public long get(Value v,int row,int sample) {
+		int[] s = sizes.get(sample);
+		int n = s[v.feature.ordinal()];
+		if(row >= n)
+			return 0;
+		return blocks.get(sample).get(offset(v, s)+row);
+	}
+
+	/**
+	 * @param v
+	 * @param sample
+	 * @return values of all rows in given sample
+	 */
+	public long[] getSample(Value v,int sample) {
+		int[] s = sizes.get(sample);
+		long[] r = new long[getRowCount(v.feature)];
+		LongBuffer b = blocks.get(sample).duplicate();
+		b.position(offset(v, s));
+		b.get(r, 0, s[v.feature.ordinal()]);
+		return r;
+	}
+
+	/**
+	 * @param v
+	 * @param row
+	 * @return values of given row in all samples
+	 */
+	public long[] getFeature(Value v,int row) {
+		long[] r = new long[samples.size()];
+		for(int i=0;i<r.length;i++)
+			r[i] = get(v, row, i);
+		return r;
+	}
+
+	private static int offset(Value v,int[] s) {
+		switch(v) {
+		case GENE:
+			return 0;
+		case SEG_INCLUSION:
+			return s[0];
+		case SEG_EXCLUSION:
+			return s[0]+s[1];
+		default:
+			return s[0]+2*s[1];
+		}
+	}
+
+	private int addFeature(Feature f,String id,TextBuffer dict) {
+		HashMap<String, Integer> r = rows.get(f.ordinal());
+		Integer i = r.get(id);
+		if(i == null) {
+			ArrayList<String> l = ids.get(f.ordinal());
+			i = l.size();
+			l.add(id);
+			r.put(id, i);
+			if(dict != null)
+				dict.add(f.name()).add('\t').add(id).nl();
+		}
+		return i;
+	}
+
+	private void readDict() throws IOException {
+		File f = new File(base+".dict");
+		if(!f.exists() || f.length() == dict_length)
+			return;
+		FileInputStream is = new FileInputStream(f);
+		//dictionary could be only appended, so already loaded lines are skipped
+		is.getChannel().position(dict_length);
+		BufferedReader in = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8), 1000000);
+		for(String l = in.readLine();l != null;l = in.readLine()) {
+			int t = l.indexOf('\t');
+			try {
+				addFeature(Feature.valueOf(l.substring(0, t)), l.substring(t+1), null);
+			}catch(IllegalArgumentException | IndexOutOfBoundsException e) {
+				in.close();
+				throw new IOException("Wrong line in count matrix dictionary '"+f+"': "+l);
+			}
+		}
+		in.close();
+		dict_length = f.length();
+	}
+
+	/**
+	 * reads sample blocks of the file
+	 * @param ch
+	 * @param map if false, only names and sizes of samples are read
+	 * @return end of the last complete block
+	 * @throws IOException
+	 */
+	private long readBlocks(FileChannel ch,boolean map) throws IOException {
+		ByteBuffer h = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+		ByteBuffer m = ByteBuffer.allocate(MAGIC.length);
+		ch.read(m, 0);
+		if(!Arrays.equals(m.array(), MAGIC))
+			throw new IOException("File '"+base+".counts' is not sajr count matrix");
+		long pos = MAGIC.length;
+		while(pos+4 <= ch.size()) {
+			h.clear().limit(4);
+			ch.read(h, pos);
+			int nl = h.getInt(0);
+			int hlen = 4+pad(nl)+16;
+			if(pos+hlen > ch.size())
+				break;
+			ByteBuffer name = ByteBuffer.allocate(nl);
+			ch.read(name, pos+4);
+			h.clear();
+			ch.read(h, pos+4+pad(nl));
+			int[] s = {h.getInt(0),h.getInt(4),h.getInt(8)};
+			long len = 8L*(s[0]+2L*s[1]+s[2]);
+			//incomplete block, probably writing was interrupted
+			if(pos+hlen+len > ch.size())
+				break;
+			samples.add(new String(name.array(), StandardCharsets.UTF_8));
+			sizes.add(s);
+			if(map)
+				blocks.add(ch.map(FileChannel.MapMode.READ_ONLY, pos+hlen, len).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer());
+			pos += hlen+len;
+		}
+		return pos;
+	}
+
+	private static int pad(int l) {
+		return (l+7)/8*8;
+	}
+
+	/**
+	 * Appends counts of the sample to the matrix (files are created if they do not exist).
+	 * Matrix is locked while it is written, so several samples (or processes) could append to the same matrix.
+	 * Sample is not appended if matrix already has column with the same name (for example, if counting was interrupted
+	 * after the sample was appended but before it was marked as done in journal).
+	 * @param base
+	 * @param sample name of the sample
+	 * @param genes
+	 * @param chrs
+	 * @param cnt counts of the sample
+	 */
+	static void append(String base,String sample,ArrayList<Gene> genes,HashMap<String, ChrAnnotation> chrs,Counts cnt) {
+		try {
+			synchronized(dicts) {
+				CountMatrix m = dicts.get(base);
+				if(m == null) {
+					m = new CountMatrix(base);
+					dicts.put(base, m);
+				}
+				m.append(sample, genes, chrs, cnt);
+			}
+		}catch(IOException e) {
+			Log.closeWithError("Cannot write count matrix '"+base+"': "+e.getMessage(), e);
+		}
+	}
+
+	private void append(String sample,ArrayList<Gene> genes,HashMap<String, ChrAnnotation> chrs,Counts cnt) throws IOException {
+		RandomAccessFile f = new RandomAccessFile(base+".counts", "rw");
+		FileLock lock = f.getChannel().lock();
+		try {
+			if(f.length() == 0)
+				f.write(MAGIC);
+			//other process could add samples
+			samples.clear();
+			sizes.clear();
+			long end = readBlocks(f.getChannel(), false);
+			if(samples.contains(sample)) {
+				Log.warn("Count matrix '"+base+"' already has sample '"+sample+"', its counts are not appended again.");
+				return;
+			}
+			//other process could add features
+			readDict();
+			TextBuffer dict = new TextBuffer();
+			long[][] v = new long[Value.values().length][];
+			v[Value.GENE.ordinal()] = new long[genes.size()];
+			int segs = 0;
+			for(Gene g : genes)
+				segs += g.getSegCount();
+			v[Value.SEG_INCLUSION.ordinal()] = new long[segs];
+			v[Value.SEG_EXCLUSION.ordinal()] = new long[segs];
+			v[Value.INTRON.ordinal()] = new long[0];
+			long[] inc = new long[0];
+			long[] exc = new long[0];
+			for(Gene g : genes) {
+				set(v, Value.GENE, addFeature(Feature.gene, g.getId(), dict), cnt.get(g));
+				if(inc.length < g.getSegCount()) {
+					inc = new long[g.getSegCount()];
+					exc = new long[g.getSegCount()];
+				}
+				g.getSegCovs(cnt, chrs.get(g.chr_id).getFoundIntrons(g), inc, exc);
+				for(int i=0;i<g.getSegCount();i++) {
+					String id = g.getSeg(i).getId();
+					if(id == null)
+						continue;
+					int r = addFeature(Feature.segment, id, dict);
+					set(v, Value.SEG_INCLUSION, r, inc[i]);
+					set(v, Value.SEG_EXCLUSION, r, exc[i]);
+				}
+			}
+			ArrayList<String> chr_ids = new ArrayList<>(chrs.keySet());
+			Collections.sort(chr_ids);
+			for(String c : chr_ids) {
+				ArrayList<Intron> ints = chrs.get(c).getIntrons(cnt.col);
+				Collections.sort(ints);
+				for(Intron i : ints)
+					set(v, Value.INTRON, addFeature(Feature.intron, c+":"+i.start+"-"+i.stop+(i.strand==0?"":(":"+i.strand)), dict), cnt.get(i));
+			}
+			//dictionary is written first, so block never has rows that are absent in dictionary
+			FileOutputStream d = new FileOutputStream(base+".dict", true);
+			dict.writeTo(d);
+			d.close();
+			dict_length = new File(base+".dict").length();
+			int[] s = new int[Feature.values().length];
+			for(Feature t : Feature.values())
+				s[t.ordinal()] = getRowCount(t);
+			byte[] name = sample.getBytes(StandardCharsets.UTF_8);
+			ByteBuffer b = ByteBuffer.allocate(4+pad(name.length)+16+8*(s[0]+2*s[1]+s[2])).order(ByteOrder.LITTLE_ENDIAN);
+			b.putInt(name.length).put(name).position(4+pad(name.length));
+			b.putInt(s[0]).putInt(s[1]).putInt(s[2]).putInt(0);
+			for(Value t : Value.values()) {
+				long[] l = v[t.ordinal()];
+				int n = s[t.feature.ordinal()];
+				for(int i=0;i<n;i++)
+					b.putLong(i >= l.length?0:l[i]);
+			}
+			b.flip();
+			FileChannel ch = f.getChannel();
+			//incomplete block of interrupted writing is overwritten
+			ch.truncate(end);
+			long pos = end;
+			while(b.hasRemaining())
+				pos += ch.write(b, pos);
+		}finally {
+			lock.release();
+			f.close();
+		}
+	}
+
+	private static void set(long[][] v,Value t,int row,long value) {
+		long[] l = v[t.ordinal()];
+		if(row >= l.length) {
+			l = Arrays.copyOf(l, Math.max(row+1, l.length*2));
+			v[t.ordinal()] = l;
+		}
+		l[row] = value;
+	}
+}
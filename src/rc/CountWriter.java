@@ -0,0 +1,325 @@
+package rc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPInputStream;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import run.Run;
+import util.BGZFOutputStream;
+import util.CountOptions;
+import util.Log;
+import util.Settings;
+import util.Shard;
+import util.TextBuffer;
+import util.bio.ChrAnnotation;
+import util.bio.Counts;
+import util.bio.Gene;
+import util.bio.Intron;
+
+/**
+ * Writes gene, segment and intron counts of one sample chromosome by chromosome.
+ * Chromosomes are written in order of reference sequences of bam header, other chromosomes of annotation follow sorted by name.
+ * Counts of chromosome are formatted as soon as it is done (see done) and then written by background thread,
+ * so output grows while reads are counted. Output could be compressed (out_gzip) and features without reads could be skipped (out_sparse).
+ */
+class CountWriter {
+	private static final String[] EXTENSIONS = {".gene",".seg",".intron"};
+	//single thread that writes output of all samples
+	private static ExecutorService writer = null;
+	//threads that compress output blocks
+	private static ExecutorService deflaters = null;
+
+	private final HashMap<String, ChrAnnotation> chrs;
+	private final CountOptions opt;
+	private final Counts cnt;
+	private final Shard shard;
+	private final ArrayList<String> order = new ArrayList<>();
+	private final HashMap<String, Integer> chr2inx = new HashMap<>();
+	private final HashMap<String, ArrayList<Gene>> chr2genes = new HashMap<>();
+	//number of chromosomes in order that are already formatted
+	private int formatted = 0;
+	private final OutputStream gene,seg,intron;
+	private Future<?> last = null;
+	//reused to format chromosomes
+	private final TextBuffer gb = new TextBuffer(),sb = new TextBuffer(),ib = new TextBuffer();
+
+	/**
+	 * opens output files and writes their headers
+	 * @param chrs
+	 * @param genes all genes sorted by chromosomes
+	 * @param in
+	 * @param out_base
+	 * @param cnt counts of the sample
+	 * @param dict reference sequences of input
+	 * @param shard if not null, only chromosomes of the shard are written
+	 * @param opt
+	 */
+	CountWriter(HashMap<String, ChrAnnotation> chrs,ArrayList<Gene> genes,String in,String out_base,Counts cnt,SAMSequenceDictionary dict,Shard shard,CountOptions opt) {
+		this.chrs = chrs;
+		this.opt = opt;
+		this.cnt = cnt;
+		this.shard = shard;
+		for(Gene g : genes) {
+			ArrayList<Gene> l = chr2genes.get(g.chr_id);
+			if(l == null) {
+				l = new ArrayList<>();
+				chr2genes.put(g.chr_id, l);
+			}
+			l.add(g);
+		}
+		if(dict != null)
+			for(SAMSequenceRecord s : dict.getSequences())
+				addChr(s.getSequenceName());
+		addChrs(chrs.keySet());
+		OutputStream g = null,s = null,i = null;
+		try {
+			g = open(out_base+EXTENSIONS[0], in, out_base, columns(0, opt), opt);
+			s = open(out_base+EXTENSIONS[1], in, out_base, columns(1, opt), opt);
+			i = open(out_base+EXTENSIONS[2], in, out_base, columns(2, opt), opt);
+		}catch(IOException e) {
+			Log.closeWithError("Cannot write output: "+e.getMessage(),e);
+		}
+		gene = g;
+		seg = s;
+		intron = i;
+	}
+
+	private static String columns(int file,CountOptions opt) {
+		switch(file) {
+		case 0:
+			return "gene_id\treads";
+		case 1:
+			return "segment_id\tinclusion_read\texclusion_read\tinclusion_ratio";
+		default:
+			return "chr:start-stop"+(opt.stranded==0?"":":strand")+"\treads";
+		}
+	}
+
+	/**
+	 * opens output file and writes its header
+	 * @param f
+	 * @param in
+	 * @param out_base
+	 * @param columns
+	 * @param opt
+	 * @return
+	 * @throws IOException
+	 */
+	private static OutputStream open(String f,String in,String out_base,String columns,CountOptions opt) throws IOException {
+		OutputStream r;
+		if(opt.out_gzip)
+			r = new BGZFOutputStream(new FileOutputStream(f+".gz"), getPool(), 4*Settings.S().getInt(Settings.THREADS));
+		else
+			r = new BufferedOutputStream(new FileOutputStream(f), 1<<16);
+		PrintStream o = new PrintStream(r);
+		printHeader(o, in, out_base);
+		o.println(columns);
+		o.flush();
+		return r;
+	}
+
+	/**
+	 * Joins outputs of shards (see Shard) of the sample, files of shards are deleted
+	 * @param in
+	 * @param out_base
+	 * @param parts output bases of shards in shard order
+	 * @param opt
+	 * @throws IOException
+	 */
+	static void merge(String in,String out_base,String[] parts,CountOptions opt) throws IOException {
+		String gz = opt.out_gzip?".gz":"";
+		for(int e=0;e<EXTENSIONS.length;e++) {
+			OutputStream o = open(out_base+EXTENSIONS[e], in, out_base, columns(e, opt), opt);
+			for(String p : parts) {
+				File f = new File(p+EXTENSIONS[e]+gz);
+				InputStream i = new BufferedInputStream(new FileInputStream(f), 1<<16);
+				if(opt.out_gzip)
+					i = new BufferedInputStream(new GZIPInputStream(i), 1<<16);
+				//skip header and column names
+				for(int c = i.read();c == '#';c = i.read())
+					while(c != -1 && c != '\n')
+						c = i.read();
+				for(int c = i.read();c != -1 && c != '\n';c = i.read());
+				byte[] b = new byte[1<<16];
+				for(int l = i.read(b);l != -1;l = i.read(b))
+					o.write(b, 0, l);
+				i.close();
+				f.delete();
+			}
+			o.close();
+		}
+	}
+
+	/**
+	 * @param out_base
+	 * @param opt
+	 * @return true if all output files of the sample exist
+	 */
+	static boolean exists(String out_base,CountOptions opt) {
+		for(String e : EXTENSIONS)
+			if(!new File(out_base+e+(opt.out_gzip?".gz":"")).exists())
+				return false;
+		return true;
+	}
+	
+	private static synchronized ExecutorService getPool() {
+		if(deflaters == null)
+			deflaters = Executors.newFixedThreadPool(Math.max(1, Settings.S().getInt(Settings.THREADS)), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "bgzf-out");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		return deflaters;
+	}
+
+	private void addChr(String c) {
+		if(!chr2inx.containsKey(c)) {
+			chr2inx.put(c, order.size());
+			order.add(c);
+		}
+	}
+
+	private void addChrs(Iterable<String> cs) {
+		ArrayList<String> l = new ArrayList<>();
+		for(String c : cs)
+			if(!chr2inx.containsKey(c))
+				l.add(c);
+		Collections.sort(l);
+		for(String c : l)
+			addChr(c);
+	}
+
+	/**
+	 * no more reads of given chromosome will be counted, its counts (and counts of all not written chromosomes before it) are sent to output
+	 * @param chr
+	 */
+	void done(String chr) {
+		Integer i = chr2inx.get(chr);
+		if(i != null && i >= formatted)
+			write(i+1);
+	}
+
+	/**
+	 * writes all remaining chromosomes, closes files and waits until all is written
+	 */
+	void close() {
+		//chromosomes could be added by readers
+		addChrs(chrs.keySet());
+		write(order.size());
+		submit(new Runnable() {
+			public void run() {
+				try {
+					gene.close();
+					seg.close();
+					intron.close();
+				}catch(IOException e) {
+					Log.closeWithError("Cannot write output: "+e.getMessage(),e);
+				}
+			}
+		});
+		try {
+			last.get();
+		}catch(InterruptedException | ExecutionException e) {
+			Log.closeWithError("Cannot write output: "+e.getMessage(),e);
+		}
+	}
+
+	/**
+	 * formats chromosomes up to given index in order and sends them to writer thread
+	 * @param to
+	 */
+	private void write(int to) {
+		gb.clear();
+		sb.clear();
+		ib.clear();
+		for(;formatted<to;formatted++) {
+			String c = order.get(formatted);
+			ArrayList<Gene> genes = chr2genes.remove(c);
+			if(shard != null && !shard.contains(c))
+				continue;
+			ChrAnnotation a = chrs.get(c);
+			if(genes != null)
+				for(Gene g : genes) {
+					long v = cnt.get(g);
+					if(!opt.out_sparse || v != 0)
+						gb.add(g.getId()).add('\t').add(v).nl();
+					g.printSegCovs(sb, cnt, a == null?null:a.getFoundIntrons(g), opt);
+				}
+			if(a != null) {
+				ArrayList<Intron> ints = a.getIntrons(cnt.col);
+				Collections.sort(ints);
+				for(Intron i : ints) {
+					long v = cnt.get(i);
+					if(opt.out_sparse && v == 0)
+						continue;
+					ib.add(c).add(':').add(i.start).add('-').add(i.stop);
+					if(i.strand != 0)
+						ib.add(':').add(i.strand);
+					ib.add('\t').add(v).nl();
+				}
+			}
+		}
+		final byte[][] bytes = {gb.toByteArray(),sb.toByteArray(),ib.toByteArray()};
+		final OutputStream[] outs = {gene,seg,intron};
+		submit(new Runnable() {
+			public void run() {
+				try {
+					for(int i=0;i<outs.length;i++) {
+						outs[i].write(bytes[i]);
+						outs[i].flush();
+					}
+				}catch(IOException e) {
+					Log.closeWithError("Cannot write output: "+e.getMessage(),e);
+				}
+			}
+		});
+	}
+
+	private void submit(Runnable r) {
+		synchronized(CountWriter.class) {
+			if(writer == null)
+				writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "count-writer");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+			last = writer.submit(r);
+		}
+	}
+
+	private static void printHeader(PrintStream o,String in,String out_base) {
+		o.println("#"+new Date()+" - "+Settings.VERSION+" - "+Run.COUNT_READS);
+		HashSet<String> gr = new HashSet<String>();
+		gr.add("common");
+		gr.add("read_counter");
+		o.println("#Settings:");
+		HashMap<String, String> values = new HashMap<>();
+		values.put(Settings.IN, in);
+		values.put(Settings.OUT_BASE, out_base);
+		Settings.S().printSettings("#",gr, o, values);
+		o.flush();
+	}
+}
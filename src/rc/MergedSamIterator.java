@@ -0,0 +1,105 @@
+package rc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+import util.Log;
+import util.SamInput;
+
+/**
+ * Iterates over records of several bam files (sorted by coordinates) in order of coordinates.
+ * Files belong to samples (columns), several files could belong to the same sample.
+ */
+class MergedSamIterator {
+	private class Head {
+		final SamInput in;
+		final int col;
+		final int file;
+		SAMRecord rec;
+		
+		Head(String f,int col,int file,int threads) throws IOException {
+			in = new SamInput(f, threads);
+			if(in.getFileHeader().getSortOrder() != SAMFileHeader.SortOrder.coordinate)
+				Log.closeWithError("Input file '"+f+"' should be sorted by coordinates to be counted together with other files", null);
+			this.col = col;
+			this.file = file;
+		}
+		
+		/**
+		 * @return false if there are no more records
+		 */
+		boolean advance() {
+			rec = SamInput.next(in);
+			return rec != null;
+		}
+		
+		int getRefIndex() {
+			int r = rec.getReferenceIndex();
+			//unplaced reads are at the end of file
+			return r == -1?Integer.MAX_VALUE:r;
+		}
+	}
+	
+	private PriorityQueue<Head> heads;
+	private ArrayList<Head> all = new ArrayList<>();
+	//sample of last returned record
+	int col = -1;
+	//reference sequences, the same in all files
+	private SAMSequenceDictionary dict = null;
+	
+	/**
+	 * @param files files by samples
+	 * @param threads number of threads to inflate bam files
+	 * @throws IOException
+	 */
+	public MergedSamIterator(String[][] files,int threads) throws IOException {
+		heads = new PriorityQueue<>(11,new Comparator<Head>() {
+			public int compare(Head o1, Head o2) {
+				if(o1.getRefIndex() != o2.getRefIndex())
+					return o1.getRefIndex() < o2.getRefIndex()?-1:1;
+				if(o1.rec.getAlignmentStart() != o2.rec.getAlignmentStart())
+					return o1.rec.getAlignmentStart() - o2.rec.getAlignmentStart();
+				return o1.file - o2.file;
+			}
+		});
+		for(int col=0;col<files.length;col++) {
+			for(String f : files[col]) {
+				Head h = new Head(f, col, all.size(), threads);
+				if(dict == null)
+					dict = h.in.getFileHeader().getSequenceDictionary();
+				else if(!dict.isSameDictionary(h.in.getFileHeader().getSequenceDictionary()))
+					Log.closeWithError("Input file '"+f+"' has different set (or order) of reference sequences than other input files", null);
+				all.add(h);
+				if(h.advance())
+					heads.add(h);
+			}
+		}
+	}
+	
+	public SAMSequenceDictionary getSequenceDictionary() {
+		return dict;
+	}
+	
+	public boolean hasNext() {
+		return heads.size() > 0;
+	}
+	
+	public SAMRecord next() {
+		Head h = heads.poll();
+		SAMRecord r = h.rec;
+		col = h.col;
+		if(h.advance())
+			heads.add(h);
+		return r;
+	}
+	
+	public void close() throws IOException {
+		for(Head h : all)
+			h.in.close();
+	}
+}
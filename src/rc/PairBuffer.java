@@ -0,0 +1,208 @@
+package rc;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Alignments that wait for their mates. Alignments are looked up by read name (without /1 and /2 suffixes), 
+ * mate flag and positions without building string keys.
+ * For coordinate sorted input alignments which mates should have been already seen can be evicted. 
+ */
+class PairBuffer {
+	private static class Entry {
+		final Alignment a;
+		final int hash;
+		Entry next;
+		boolean removed = false;
+		
+		Entry(Alignment a,int hash) {
+			this.a = a;
+			this.hash = hash;
+		}
+	}
+	
+	private Entry[] table = new Entry[1024];
+	private int size = 0;
+	//entries by mate start, used for eviction only; entries are removed from it lazily
+	private PriorityQueue<Entry> by_mate_start = null;
+	private String chr = null;
+	
+	/**
+	 * @param evict whether to keep entries ordered by mate position to evict them (see evict)
+	 */
+	public PairBuffer(boolean evict) {
+		if(evict)
+			by_mate_start = new PriorityQueue<>(1024, new Comparator<Entry>() {
+				public int compare(Entry o1, Entry o2) {
+					return Integer.compare(o1.a.mate_start, o2.a.mate_start);
+				}
+			});
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * @param n
+	 * @return length of read name without mate suffix (/1, /2, \1, \2, ;1 or ;2)
+	 */
+	static int nameLength(String n) {
+		int l = n.length();
+		if(l > 1 && (n.charAt(l-1) == '1' || n.charAt(l-1) == '2') &&
+		   (n.charAt(l-2) == ';' || n.charAt(l-2) == '\\' || n.charAt(l-2) == '/'))
+			return l-2;
+		return l;
+	}
+	
+	static int nameHash(String n,int len) {
+		int h = 0;
+		for(int i=0;i<len;i++)
+			h = 31*h + n.charAt(i);
+		return h;
+	}
+	
+	/**
+	 * @param a
+	 * @param r
+	 * @param name_len length of r name without mate suffix
+	 * @return true if a is mate of r
+	 */
+	static boolean isMate(Alignment a,Alignment r,int name_len) {
+		return a.first != r.first && a.start == r.mate_start && a.mate_start == r.start && 
+				a.chr.equals(r.mate_chr) && nameLength(a.name) == name_len && a.name.regionMatches(0, r.name, 0, name_len);
+	}
+	
+	private static int hash(int name_hash,boolean first,int start,int mate_start) {
+		int h = name_hash;
+		h = 31*h + (first?1:0);
+		h = 31*h + start;
+		h = 31*h + mate_start;
+		return h ^ (h >>> 16);
+	}
+	
+	/**
+	 * Finds and removes earliest added alignment that is mate of r.
+	 * @param r
+	 * @param name_len see nameLength
+	 * @param name_hash see nameHash
+	 * @return mate or null if there is no mate
+	 */
+	public Alignment removeMate(Alignment r,int name_len,int name_hash) {
+		int h = hash(name_hash, !r.first, r.mate_start, r.start);
+		int i = h & (table.length-1);
+		Entry prev = null;
+		for(Entry e = table[i];e != null;prev = e,e = e.next) {
+			if(e.hash == h && isMate(e.a, r, name_len)) {
+				unlink(i, prev, e);
+				return e.a;
+			}
+		}
+		return null;
+	}
+	
+	public void add(Alignment r,int name_hash) {
+		if(size >= table.length*3/4)
+			resize();
+		Entry n = new Entry(r, hash(name_hash, r.first, r.start, r.mate_start));
+		int i = n.hash & (table.length-1);
+		//keep order of addition within bucket, so alignments with the same key are paired in that order
+		if(table[i] == null)
+			table[i] = n;
+		else {
+			Entry e = table[i];
+			while(e.next != null)
+				e = e.next;
+			e.next = n;
+		}
+		size++;
+		if(by_mate_start != null)
+			by_mate_start.add(n);
+	}
+	
+	/**
+	 * Removes all alignments which mates should start before given position (mates are always on the same chromosome).
+	 * Input should be sorted by coordinates.
+	 * @param chr current chromosome
+	 * @param start current position
+	 * @param to evicted alignments are added there
+	 */
+	public void evict(String chr,int start,ArrayList<Alignment> to) {
+		if(!chr.equals(this.chr)) {
+			moveAll(to);
+			this.chr = chr;
+			return;
+		}
+		while(!by_mate_start.isEmpty() && by_mate_start.peek().a.mate_start < start) {
+			Entry e = by_mate_start.poll();
+			if(e.removed)
+				continue;
+			remove(e);
+			to.add(e.a);
+		}
+	}
+	
+	/**
+	 * Moves all alignments into given list, buffer is empty after that.
+	 * @param to
+	 */
+	public void moveAll(ArrayList<Alignment> to) {
+		for(Entry e : table)
+			for(;e != null;e = e.next)
+				to.add(e.a);
+		table = new Entry[1024];
+		size = 0;
+		if(by_mate_start != null)
+			by_mate_start.clear();
+	}
+	
+	/**
+	 * @return any alignment from buffer or null if it is empty
+	 */
+	public Alignment any() {
+		for(Entry e : table)
+			if(e != null)
+				return e.a;
+		return null;
+	}
+	
+	private void remove(Entry r) {
+		int i = r.hash & (table.length-1);
+		Entry prev = null;
+		for(Entry e = table[i];e != r;e = e.next)
+			prev = e;
+		unlink(i, prev, r);
+	}
+	
+	private void unlink(int i,Entry prev,Entry e) {
+		if(prev == null)
+			table[i] = e.next;
+		else
+			prev.next = e.next;
+		e.next = null;
+		e.removed = true;
+		size--;
+	}
+	
+	private void resize() {
+		Entry[] old = table;
+		table = new Entry[old.length*2];
+		for(Entry e : old) {
+			while(e != null) {
+				Entry n = e.next;
+				e.next = null;
+				int i = e.hash & (table.length-1);
+				if(table[i] == null)
+					table[i] = e;
+				else {
+					Entry t = table[i];
+					while(t.next != null)
+						t = t.next;
+					t.next = e;
+				}
+				e = n;
+			}
+		}
+	}
+}
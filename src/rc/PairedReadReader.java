@@ -0,0 +1,166 @@
+package rc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import htsjdk.samtools.SAMFileHeader;
+import util.CountOptions;
+import util.Log;
+import util.bio.ChrAnnotation;
+import util.bio.Counts;
+
+class PairedReadReader {
+	HashMap<String, ChrAnnotation> chrs;
+	final CountOptions opt;
+	//records that wait for their mates
+	PairBuffer records;
+	//pairs that end after max_stop are not counted but added to deferred
+	int max_stop = Integer.MAX_VALUE;
+	ArrayList<Alignment> deferred;
+	final Counts cnt;
+	//if input is sorted by coordinates, records which mates were not found in expected position are evicted from buffer
+	boolean coordinate_sorted = false;
+	//if input is grouped by read names, mates are looked for only among records with the same name
+	boolean name_grouped = false;
+	private ArrayList<Alignment> group = new ArrayList<>();
+	private ArrayList<Alignment> evicted = new ArrayList<>();
+	private int orphans = 0;
+	private Alignment orphan = null;
+	//if input is sorted by coordinates, chromosomes are written and released once pairs of the next chromosome come
+	ChrSweep sweep = null;
+	
+	public PairedReadReader(HashMap<String, ChrAnnotation> chrs,CountOptions opt,Counts cnt) {
+		this(chrs, opt, false, cnt);
+	}
+	
+	public PairedReadReader(HashMap<String, ChrAnnotation> chrs,CountOptions opt,boolean coordinate_sorted,Counts cnt) {
+		this.chrs = chrs;
+		this.opt = opt;
+		this.cnt = cnt;
+		this.coordinate_sorted = coordinate_sorted;
+		records = new PairBuffer(coordinate_sorted);
+	}
+	
+	/**
+	 * Chooses the way to look for mates by sort (or group) order of the input
+	 * @param chrs
+	 * @param h
+	 */
+	public PairedReadReader(HashMap<String, ChrAnnotation> chrs,CountOptions opt,SAMFileHeader h,Counts cnt) {
+		this(chrs, opt, h.getSortOrder() == SAMFileHeader.SortOrder.coordinate, cnt);
+		name_grouped = h.getSortOrder() == SAMFileHeader.SortOrder.queryname || h.getGroupOrder() == SAMFileHeader.GroupOrder.query;
+		if(name_grouped)
+			Log.println("Input is grouped by read names, mates will be looked for among adjacent records");
+	}
+	
+	public PairedReadReader(HashMap<String, ChrAnnotation> chrs,CountOptions opt,int max_stop,ArrayList<Alignment> deferred,Counts cnt) {
+		this(chrs, opt, true, cnt);
+		this.max_stop = max_stop;
+		this.deferred = deferred;
+	}
+
+	public void read(Alignment r) {
+		if(name_grouped) {
+			readGrouped(r);
+			return;
+		}
+		if(coordinate_sorted) {
+			records.evict(r.chr, r.start, evicted);
+			evicted();
+		}
+		int name_len = PairBuffer.nameLength(r.name);
+		int name_hash = PairBuffer.nameHash(r.name, name_len);
+		Alignment m = records.removeMate(r, name_len, name_hash);
+		if(m == null)
+			records.add(r, name_hash);
+		else
+			count(r, m);
+	}
+	
+	/**
+	 * All records of the same read are adjacent, so only records of current read are kept.
+	 * @param r
+	 */
+	private void readGrouped(Alignment r) {
+		int name_len = PairBuffer.nameLength(r.name);
+		if(group.size() > 0) {
+			Alignment g = group.get(0);
+			if(PairBuffer.nameLength(g.name) != name_len || !g.name.regionMatches(0, r.name, 0, name_len)) {
+				evicted.addAll(group);
+				group.clear();
+				evicted();
+			}
+		}
+		for(int i=0;i<group.size();i++)
+			if(PairBuffer.isMate(group.get(i), r, name_len)) {
+				count(r, group.remove(i));
+				return;
+			}
+		group.add(r);
+	}
+	
+	private void evicted() {
+		if(evicted.size() > 0) {
+			//mates could be counted later together with deferred reads
+			if(deferred != null)
+				deferred.addAll(evicted);
+			else {
+				orphans += evicted.size();
+				if(orphan == null)
+					orphan = evicted.get(0);
+			}
+			evicted.clear();
+		}
+	}
+	
+	/**
+	 * @param r
+	 * @param m mate of r
+	 */
+	private void count(Alignment r,Alignment m) {
+		Alignment f = r.first?r:m;
+		Alignment s = r.first?m:r;
+		if(f.stop > max_stop || s.stop > max_stop) {
+			deferred.add(m);
+			deferred.add(r);
+			return;
+		}
+		ChrAnnotation c = chrs.get(f.chr);
+		if(c==null){
+			c = new ChrAnnotation(f.chr, opt, cnt.ids);
+			c.loaded();
+			chrs.put(f.chr,c);
+		}
+		if(sweep != null && !sweep.next(c))
+			return;
+		int strand = opt.stranded*(f.negative?-1:1);
+		if(f.xs != 0) //prabably it whould be better to check that it isn't contradict to getReadNegativeStrandFlag...
+			strand = f.xs == '+'?1:-1;
+		if(s.xs != 0) //prabably it whould be better to check that it isn't contradict to getReadNegativeStrandFlag...
+			strand = s.xs == '+'?1:-1;
+		c.addReads(f.inters, s.inters, strand, cnt);
+	}
+	
+	/**
+	 * moves records that still wait for their mates into given list
+	 * @param to
+	 */
+	public void moveUnpaired(ArrayList<Alignment> to) {
+		records.moveAll(to);
+		to.addAll(group);
+		group.clear();
+	}
+	
+	public void finish() {
+		int i = orphans + records.size() + group.size();
+		if(i != 0) {
+			Alignment t = orphan != null?orphan:group.size() > 0?group.get(0):records.any();
+			Log.throwUncrucialExc("There are "+i+" read locations that doesn't have expected mate records. " +
+					"For example read "+t.name+", location "+t.chr+":"+t.start+" "+
+					"should have mate mapped to "+t.mate_chr+":"+t.mate_start+" "+
+					"but it cannot be found. It could happen if one mate was filtered out. " +
+					"For eaxample if NH attributes is one (or absent) in one of mates, " +
+					"while in other it is more than 1 and use_mult is set to false.");
+		}
+	}
+}
@@ -1,298 +1,651 @@
 package rc;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Date;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import run.Run;
+import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMFormatException;
-import htsjdk.samtools.SamInputResource;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SAMRecord;
-import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import run.Run;
+import util.CountOptions;
+import util.Journal;
 import util.Log;
+import util.MapIntervals;
+import util.SamInput;
 import util.Settings;
+import util.Shard;
+import util.Stat;
+import util.Stats;
 import util.Util;
 import util.bio.ChrAnnotation;
+import util.bio.CompiledAnnotation;
+import util.bio.Counts;
+import util.bio.FeatureIds;
 import util.bio.GFFException;
 import util.bio.GFFeature;
-import util.bio.GFFParser;
+import util.bio.GFFGeneReader;
 import util.bio.Gene;
 import util.bio.Intron;
 import util.bio.Seg;
 
-class SingleReadReader {
+public class ReadCounter {
 	HashMap<String, ChrAnnotation> chrs;
-	
-	public SingleReadReader(HashMap<String, ChrAnnotation> chrs) {
-		this.chrs = chrs;
-	}
+	ArrayList<Gene> genes;
+	FeatureIds ids;
+	//numbers of genes, segments and introns in annotation file
+	int[] ann_stat;
+	String in;
+	String out_base;
+	final CountOptions opt;
+	//counts of the sample
+	Counts cnt;
+	CountWriter out;
 
-	public void read(SAMRecord r) {
-		ChrAnnotation c = chrs.get(r.getReferenceName());
-		if(c==null){
-			c = new ChrAnnotation(r.getReferenceName());
-			c.loaded();
-			chrs.put(r.getReferenceName(),c);
-		}
-		int[] inters = Util.getMapIntervals(r);
-		int strand = Settings.S().getInt(Settings.STRANDED)*(r.getReadNegativeStrandFlag()?-1:1);
-		if(r.getReadPairedFlag() && !r.getFirstOfPairFlag())
-			strand = -strand;
-		if(r.getCharacterAttribute("XS") != null) //prabably it whould be better to check that it isn't contradict to getReadNegativeStrandFlag...
-			strand = r.getCharacterAttribute("XS") == '+'?1:-1;
-		c.addRead(inters, strand);
+	public ReadCounter() {
+		this(new CountOptions(Settings.S()));
 	}
-}
-
-class PairedReadReader {
-	HashMap<String, ChrAnnotation> chrs;
-	String read_name = null;
-	//list of records by: read name;first_mate;chr;start;mate_start
-	HashMap<String,LinkedList<SAMRecord>> records = new HashMap<>(); 
 	
-	public PairedReadReader(HashMap<String, ChrAnnotation> chrs) {
-		this.chrs = chrs;
+	public ReadCounter(CountOptions opt) {
+		this(opt, true);
 	}
-
-	public void read(SAMRecord r) {
-		String n = r.getReadName();
-		//truncate read mate information if exists
-		if((n.charAt(n.length()-1) == '1' || n.charAt(n.length()-1) == '2') &&
-		   (n.charAt(n.length()-2) == ';' || n.charAt(n.length()-2) == '\\' || n.charAt(n.length()-2) == '/'))
-			n = n.substring(0,n.length()-2);
-		String mate_key = n+";"+!r.getFirstOfPairFlag()+";"+r.getMateReferenceName()+";"+r.getMateAlignmentStart()+";"+r.getAlignmentStart();
-		LinkedList<SAMRecord> mates = records.get(mate_key);
-		if(mates == null) {
-			String its_key = n+";"+r.getFirstOfPairFlag()+";"+r.getReferenceName()+";"+r.getAlignmentStart()+";"+r.getMateAlignmentStart();
-			mates = records.get(its_key);
-			if(mates == null) {
-				mates = new LinkedList<>();
-				records.put(its_key,mates);
-			}
-			mates.add(r);
-		}else {
-			SAMRecord f = r.getFirstOfPairFlag()?r:mates.removeFirst();
-			SAMRecord s = r.getFirstOfPairFlag()?mates.removeFirst():r;
-			if(mates.size() == 0)
-				records.remove(mate_key);
-			ChrAnnotation c = chrs.get(f.getReferenceName());
-			if(c==null){
-				c = new ChrAnnotation(f.getReferenceName());
-				c.loaded();
-				chrs.put(f.getReferenceName(),c);
+	
+	/**
+	 * @param opt
+	 * @param compiled if true, compiled annotation (ann_compiled) is used if it is set and up to date
+	 */
+	private ReadCounter(CountOptions opt,boolean compiled) {
+		this.opt = opt;
+		String ann_in = Settings.S().getString(Settings.ANN_IN);
+		String ann_compiled = Settings.S().getString(Settings.ANN_COMPILED);
+		if(compiled && !ann_compiled.equals("-")) {
+			try {
+				CompiledAnnotation a = CompiledAnnotation.read(ann_compiled, ann_in, Settings.S().getString(Settings.GENE_BLACK_LIST), Settings.S().getBoolean(Settings.ANN_COMPILED_VERIFY), opt);
+				if(a != null) {
+					chrs = a.chrs;
+					genes = a.genes;
+					ids = a.ids;
+					ann_stat = a.stat;
+					Log.println("Compiled annotation loaded: #chr="+chrs.size()+"; #genes="+ann_stat[0]+"; #segs="+ann_stat[1]+"; #introns="+ann_stat[2]);
+					return;
+				}
+				Log.warn("Run "+Run.COMPILE_ANNOTATION+" to update it. Annotation will be loaded from '"+ann_in+"'.");
+			}catch(IOException e) {
+				Log.closeWithError("Cannot read compiled annotation file: "+ann_compiled, e);
 			}
-			int[] r1 = Util.getMapIntervals(f);
-			int[] r2 = Util.getMapIntervals(s);
-			int strand = Settings.S().getInt(Settings.STRANDED)*(f.getReadNegativeStrandFlag()?-1:1);
-			if(f.getCharacterAttribute("XS") != null) //prabably it whould be better to check that it isn't contradict to getReadNegativeStrandFlag...
-				strand = f.getCharacterAttribute("XS") == '+'?1:-1;
-			if(s.getCharacterAttribute("XS") != null) //prabably it whould be better to check that it isn't contradict to getReadNegativeStrandFlag...
-				strand = s.getCharacterAttribute("XS") == '+'?1:-1;
-			c.addReads(r1, r2, strand);
-
 		}
-	}
-	
-	public void finish() {
-		if(records.size()!=0) {
-			int i = 0;
-			for(LinkedList<SAMRecord> t : records.values())
-				i += t.size();
-			SAMRecord t = records.values().iterator().next().getFirst();
-			Log.throwUncrucialExc("There are "+i+" read locations that doesn't have expected mate records. " +
-					"For example read "+t.getReadName()+", location "+t.getReferenceName()+":"+t.getAlignmentStart()+" "+
-					"should have mate mapped to "+t.getMateReferenceName()+":"+t.getMateAlignmentStart()+" "+
-					"but it cannot be found. It could happen if one mate was filtered out. " +
-					"For eaxample if NH attributes is one (or absent) in one of mates, " +
-					"while in other it is more than 1 and use_mult is set to false.");
+		try {
+			loadGff(ann_in);
+		} catch (Exception e) {
+			Log.closeWithError("Cannot read annotation file: "+ann_in,e);
 		}
 	}
-}
-
-public class ReadCounter {
-	HashMap<String, ChrAnnotation> chrs;
-	ArrayList<Gene> genes;
-
-	public ReadCounter() {
+	
+	/**
+	 * loads annotation from ann_in and writes it into ann_compiled
+	 */
+	public static void compileAnnotation() {
+		String f = Settings.S().getString(Settings.ANN_COMPILED);
+		if(f.equals("-"))
+			Log.closeWithError(Settings.ANN_COMPILED+" should be set to compile annotation", null);
+		ReadCounter r = new ReadCounter(new CountOptions(Settings.S()), false);
 		try {
-			loadGff(Settings.S().getString(Settings.ANN_IN));
-		} catch (Exception e) {
-			Log.closeWithError("Cannot read annotation file: "+Settings.S().getString(Settings.ANN_IN),e);
+			CompiledAnnotation.write(f, Settings.S().getString(Settings.ANN_IN), Settings.S().getString(Settings.GENE_BLACK_LIST), r.chrs, r.genes, r.ann_stat);
+		}catch(IOException e) {
+			Log.closeWithError("Cannot write compiled annotation: "+e.getMessage(), e);
 		}
+		Log.println("Annotation is compiled into "+f);
+	}
+	
+	/**
+	 * makes counter with its own view of annotation (see ChrAnnotation.view), annotation of ann is not changed
+	 * @param ann counter that was not used to count reads
+	 * @param in
+	 * @param out_base
+	 */
+	private ReadCounter(ReadCounter ann,String in,String out_base) {
+		this.opt = ann.opt;
+		this.in = in;
+		this.out_base = out_base;
+		ids = ann.ids;
+		chrs = new HashMap<>();
+		for(String c : ann.chrs.keySet())
+			chrs.put(c, ann.chrs.get(c).view());
+		genes = ann.genes;
 	}
 	
 	/**
-	 * if data is unstranded, loaded annotation will be also unstranded
+	 * if data is unstranded, loaded annotation will be also unstranded.
+	 * Annotation is read gene by gene (see GFFGeneReader), if lines of some gene are not successive it is sorted in temporary files and read again.
 	 * @param f
 	 * @throws IOException
 	 * @throws GFFException 
 	 */
 	private void loadGff(String fname) throws IOException, GFFException{
+		int threads = Settings.S().getInt(Settings.THREADS);
+		if(Settings.S().getBoolean(Settings.ANN_GROUPED)) {
+			GFFGeneReader in = new GFFGeneReader(fname, threads, false);
+			boolean split = !loadGenes(in);
+			in.close();
+			if(!split)
+				return;
+			Log.println("Lines of some genes in '"+fname+"' are not successive, annotation will be sorted in temporary files");
+		}
+		GFFGeneReader in = new GFFGeneReader(fname, threads, true);
+		loadGenes(in);
+		in.close();
+	}
+	
+	/**
+	 * @param in
+	 * @return false if reading was stopped since lines of some gene are not successive (see GFFGeneReader.isSplit)
+	 * @throws IOException
+	 * @throws GFFException
+	 */
+	private boolean loadGenes(GFFGeneReader in) throws IOException, GFFException{
 		String[] black_list = Settings.S().getString(Settings.GENE_BLACK_LIST).split("@");
 		Arrays.sort(black_list);
 		chrs = new HashMap<>();
 		genes = new ArrayList<>();
+		ids = new FeatureIds();
 		int[] stat = new int[3];
 		Gene g = null;
-		ChrAnnotation chr = null;
-		HashMap<Intron,Intron> ints = null;
-		//read
-		GFFParser gffp = new GFFParser(fname);
-		ArrayList<GFFeature> gff = new ArrayList<GFFeature>();
-		for(GFFeature f=gffp.next();f != null;f=gffp.next())
-			gff.add(f);
-		gffp.close();
-		//sort
-		Collections.sort(gff,new Comparator<GFFeature>() {
-			public int compare(GFFeature o1, GFFeature o2) {
-				if(!o1.seqname.equals(o2.seqname))
-					return o1.seqname.compareTo(o2.seqname);
-				String gid1 = o1.getAttr("gene_id");
-				String gid2 = o2.getAttr("gene_id");
-				if(!gid1.equals(gid2))
-					return gid1.compareTo(gid2);
-				//genes first
-				if(o1.feature.equals("gene") && !o2.feature.equals("gene"))
-					return -1;
-				if(!o1.feature.equals("gene") && o2.feature.equals("gene"))
-					return 1;
-				return 0;
-				 
-			}
-		});
+		//genes and introns of chromosomes, introns shared by genes should be the same objects
+		HashMap<String, ArrayList<Gene>> chr2genes = new HashMap<>();
+		HashMap<String, HashMap<Intron,Intron>> chr2ints = new HashMap<>();
 		//parse
-		for(GFFeature f : gff){
-			if(f.getAttr("gene_id") == null)
-				Log.closeWithError("Wrong annotation file format. Features should have gene_id attribute.", null);
-			if(Arrays.binarySearch(black_list, f.getAttr("gene_id")) >= 0)
-				continue;
-			int strand = f.strand;
-			switch(f.feature) {
-			case "gene":
-				stat[0]++;
-				if(chr == null || !chr.getID().equals(f.seqname)) {
-					if(chr != null)
-						chr.loaded();
-					chr = new ChrAnnotation(f.seqname);
-					if(chrs.containsKey(f.seqname))
-						Log.closeWithError("Annotation file isn't sorted by chr: '"+f.seqname+"' meet at least twice!",new RuntimeException());
-					chrs.put(f.seqname, chr);
-					ints = new HashMap<Intron, Intron>();
-				}
-				g = new Gene(f.start, f.stop,strand, f.seqname,f.getAttr("gene_id"));
-				chr.addGene(g);
-				genes.add(g);
-				break;
-			case "segment":
-				try {
-					g.addSeg(new Seg(f.start, f.stop,strand, Seg.segType.valueOf(f.getAttr("type")), Seg.segPos.valueOf(f.getAttr("position")),f.getAttr("segment_id")));
-				}catch(IllegalArgumentException e) {
-					Log.closeWithError("Unknown segment type = '"+f.getAttr("type")+
-							"' or position = '"+f.getAttr("position")+"'. " +
-							"Type should be in: "+Util.join(Seg.segType.values(), ", ")+
-							", position should be in: "+Util.join(Seg.segPos.values(), ", "), e);
+		for(ArrayList<GFFeature> gene=in.next();gene != null;gene=in.next()){
+			for(GFFeature f : gene) {
+				if(Arrays.binarySearch(black_list, f.getAttr("gene_id")) >= 0)
+					continue;
+				int strand = f.strand;
+				switch(f.feature) {
+				case "gene":
+					stat[0]++;
+					if(!chr2genes.containsKey(f.seqname)) {
+						chr2genes.put(f.seqname, new ArrayList<Gene>());
+						chr2ints.put(f.seqname, new HashMap<Intron, Intron>());
+					}
+					g = new Gene(f.start, f.stop,strand, f.seqname,f.getAttr("gene_id"));
+					chr2genes.get(f.seqname).add(g);
+					break;
+				case "segment":
+					try {
+						g.addSeg(new Seg(f.start, f.stop,strand, Seg.segType.valueOf(f.getAttr("type")), Seg.segPos.valueOf(f.getAttr("position")),f.getAttr("segment_id")));
+					}catch(IllegalArgumentException e) {
+						Log.closeWithError("Unknown segment type = '"+f.getAttr("type")+
+								"' or position = '"+f.getAttr("position")+"'. " +
+								"Type should be in: "+Util.join(Seg.segType.values(), ", ")+
+								", position should be in: "+Util.join(Seg.segPos.values(), ", "), e);
+					}
+					stat[1]++;
+					break;
+				case "intron":
+					HashMap<Intron,Intron> ints = chr2ints.get(g.chr_id);
+					Intron i = new Intron(f.start, f.stop,strand);
+					if(!ints.containsKey(i))
+						ints.put(i, i);
+					g.addIntron(ints.get(i));
+					stat[2]++;
+					break;
+				default:
+					Log.closeWithError("Annotation contains unknown feature: '"+f.feature+"'. Only gene,segment and intron are allowed.", new RuntimeException());
 				}
-				stat[1]++;
-				break;
-			case "intron":
-				Intron i = new Intron(f.start, f.stop,strand);
-				if(!ints.containsKey(i))
-					ints.put(i, i);
-				g.addIntron(ints.get(i));
-				stat[2]++;
-				break;
-			default:
-				Log.closeWithError("Annotation contains unknown feature: '"+f.feature+"'. Only gene,segment and intron are allowed.", new RuntimeException());
 			}
-			
 		}
-		if(chr!= null)
+		if(in.isSplit())
+			return false;
+		//chromosomes in order of names and genes in order of ids, as if whole annotation was sorted, so features get the same ids whatever order of file is
+		ArrayList<String> chr_ids = new ArrayList<>(chr2genes.keySet());
+		Collections.sort(chr_ids);
+		for(String c : chr_ids) {
+			ArrayList<Gene> gs = chr2genes.remove(c);
+			Collections.sort(gs, new Comparator<Gene>() {
+				public int compare(Gene o1, Gene o2) {
+					return o1.getId().compareTo(o2.getId());
+				}
+			});
+			ChrAnnotation chr = new ChrAnnotation(c, opt, ids);
+			for(Gene cg : gs) {
+				chr.addGene(cg);
+				genes.add(cg);
+			}
 			chr.loaded();
+			chrs.put(c, chr);
+		}
+		ann_stat = stat;
 		Log.println("Annotation loaded: #chr="+chrs.size()+"; #genes="+stat[0]+"; #segs="+stat[1]+"; #introns="+stat[2]);
+		return true;
 	}
 	
-	private void countReads() throws IOException  {
-		if(!(new File(Settings.S().getString(Settings.IN))).exists())
-			Log.closeWithError("Input file '"+Settings.S().getString(Settings.IN)+"' doesn't exists",new RuntimeException());
-		SamReader in = SamReaderFactory.makeDefault().open(SamInputResource.of(new BufferedInputStream(new FileInputStream(Settings.S().getString(Settings.IN)),10000000)));
-		SingleReadReader sreader = new SingleReadReader(chrs);
-		PairedReadReader preader = new PairedReadReader(chrs);
+	/**
+	 * @param threads if more than one, bam blocks are inflated in parallel (see SamInput) and records are read, decoded and counted by different threads (see ReadPipeline)
+	 * (the latter is not used if shard is set)
+	 * @throws IOException
+	 */
+	private void countReads(int threads) throws IOException  {
+		if(!(new File(this.in)).exists())
+			Log.closeWithError("Input file '"+this.in+"' doesn't exists",new RuntimeException());
+		SamInput in = new SamInput(this.in, threads);
+		out = openOutput(in.getFileHeader().getSequenceDictionary());
+		SingleReadReader sreader = new SingleReadReader(chrs, opt, cnt);
+		PairedReadReader preader = new PairedReadReader(chrs, opt, in.getFileHeader(), cnt);
+		if(in.getFileHeader().getSortOrder() == SAMFileHeader.SortOrder.coordinate)
+			sreader.sweep = preader.sweep = new ChrSweep(out);
+		//without index worker of shard reads whole file but counts only records of its chromosomes
+		Shard shard = Shard.get(in.getFileHeader().getSequenceDictionary());
 		int i = 0;
-		Iterator<SAMRecord> samIterator = in.iterator();
-		for(;samIterator.hasNext();) {
-			try{
-				SAMRecord r = samIterator.next();
-				Log.addStat(Log.TOTAL_READS, 1);
-				if(i % 10000000 == 0) {
-					Log.println(i+" lines parsed");
+		MapIntervals buf = new MapIntervals();
+		if(threads > 1 && shard == null) {
+			i = new ReadPipeline(Math.max(1, threads-2), opt).count(in, sreader, preader);
+		}else {
+			for(SAMRecord r = SamInput.next(in);r != null;r = SamInput.next(in)) {
+				try{
+					if(shard != null && !shard.contains(r.getReferenceName()))
+						continue;
+					if(i % 10000000 == 0) {
+						Log.println(i+" lines parsed");
+					}
+					i++;
+					if(!accept(r, opt)) {
+						continue;
+					}
+					if(!countAsPair(r, opt)) {
+						buf.decode(r);
+						sreader.read(r, buf);
+					}else
+						preader.read(new Alignment(r, buf, opt));
+				}catch(SAMFormatException e){
+					Log.throwUncrucialExc("Something wrong with read SAM format: "+e.getMessage()+".\n"
+							+ "The read was skipped.");
 				}
-				i++;
-				if(!accept(r)) {
-					continue;
+			}
+		}
+		Log.println(i+" lines parsed");
+		preader.finish();
+		in.close();
+	}
+	
+	/**
+	 * Counts reads by several threads. BAM file is split (by its index) into chromosomes, 
+	 * long chromosomes are split further by regions between genes. 
+	 * Reads that do not fit into single region are counted by main thread after all regions are done,
+	 * so results are the same as for single thread counting. Each thread counts reads into its own Counts, they are summed at the end.
+	 * @param threads
+	 * @throws IOException
+	 */
+	private void countReadsParallel(int threads) throws IOException {
+		final File f = new File(this.in);
+		if(!f.exists())
+			Log.closeWithError("Input file '"+this.in+"' doesn't exists",new RuntimeException());
+		SamReader in = SamInput.open(f);
+		if(!in.hasIndex()) {
+			in.close();
+			Log.warn("Input file '"+f+"' has no index, reads will be counted by one counting thread.");
+			countReads(threads);
+			return;
+		}
+		//make regions
+		List<SAMSequenceRecord> seqs = in.getFileHeader().getSequenceDictionary().getSequences();
+		out = openOutput(in.getFileHeader().getSequenceDictionary());
+		in.close();
+		long total_length = 0;
+		for(SAMSequenceRecord s : seqs)
+			total_length += s.getSequenceLength();
+		int len = (int)Math.max(1000000, total_length/threads/4);
+		final ArrayList<RegionCounter> regs = new ArrayList<>();
+		ArrayList<ChrAnnotation> unknown_chrs = new ArrayList<>();
+		for(SAMSequenceRecord s : seqs) {
+			ChrAnnotation c = chrs.get(s.getSequenceName());
+			if(c == null) {
+				c = new ChrAnnotation(s.getSequenceName(), opt, ids);
+				c.loaded();
+				unknown_chrs.add(c);
+			}
+			ArrayList<int[]> parts = c.split(s.getSequenceLength(), len);
+			for(int[] p : parts)
+				regs.add(new RegionCounter(c, p[0], p[1], parts.size()==1?c:c.subset(p[0], p[1]), opt));
+		}
+		regs.add(new RegionCounter(null, 0, 0, null, opt));
+		Log.println("Count reads by "+threads+" threads in "+regs.size()+" regions");
+		//count
+		final AtomicInteger next = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		ArrayList<Future<Stats>> stats = new ArrayList<>();
+		final Counts[] counts = new Counts[threads];
+		for(int t=0;t<threads;t++) {
+			final Counts c = new Counts(ids, cnt.col);
+			counts[t] = c;
+			stats.add(pool.submit(new Callable<Stats>() {
+				public Stats call() throws IOException {
+					SamReader in = SamInput.open(f);
+					for(int i = next.getAndIncrement();i<regs.size();i = next.getAndIncrement())
+						regs.get(i).count(in, c);
+					in.close();
+					return Log.takeStat();
+				}
+			}));
+		}
+		pool.shutdown();
+		try {
+			for(Future<Stats> s : stats)
+				Log.mergeStat(s.get());
+		}catch(InterruptedException | ExecutionException e) {
+			Log.closeWithError("Read counting failed: "+e.getMessage(), e);
+		}
+		//merge
+		for(Counts c : counts)
+			cnt.merge(c);
+		int i = 0;
+		for(RegionCounter r : regs) {
+			i += r.records;
+			if(r.chr != null && r.chr != r.part)
+				r.chr.merge(r.part);
+		}
+		for(ChrAnnotation c : unknown_chrs) {
+			for(RegionCounter r : regs)
+				if(r.chr == c && r.used) {
+					chrs.put(c.getID(), c);
+					break;
 				}
-				if(Settings.S().getInt(Settings.PAIRED)==0 || !r.getReadPairedFlag() || !r.getProperPairFlag())
-					sreader.read(r);
+		}
+		Log.println(i+" lines parsed");
+		//count reads that do not fit into regions
+		SingleReadReader sreader = new SingleReadReader(chrs, opt, cnt);
+		PairedReadReader preader = new PairedReadReader(chrs, opt, cnt);
+		for(RegionCounter r : regs) {
+			for(Alignment a : r.deferred) {
+				if(!a.pair)
+					sreader.read(a);
 				else
-					preader.read(r);
-			}catch(SAMFormatException e){
-				Log.throwUncrucialExc("Something wrong with read SAM format: "+e.getMessage()+".\n"
-						+ "The read was skipped.");
+					preader.read(a);
 			}
 		}
-		Log.println(i+" lines parsed");
 		preader.finish();
+	}
+	
+	/**
+	 * Counts only reads that overlap regions (see TargetRegions) or chromosomes of the shard, chromosome by chromosome.
+	 * Pairs which mates were not found within regions are counted after regions of the chromosome,
+	 * their mates are looked for by mate positions.
+	 * @throws IOException
+	 */
+	private void countReadsInRegions() throws IOException {
+		File f = new File(this.in);
+		if(!f.exists())
+			Log.closeWithError("Input file '"+this.in+"' doesn't exists",new RuntimeException());
+		SamReader in = SamInput.open(f);
+		if(!in.hasIndex()) {
+			in.close();
+			Log.warn("Input file '"+f+"' has no index, all reads will be counted instead of regions ("+Settings.COUNT_REGIONS+").");
+			countReads(Settings.S().getInt(Settings.THREADS));
+			return;
+		}
+		SAMSequenceDictionary dict = in.getFileHeader().getSequenceDictionary();
+		Shard shard = Shard.get(dict);
+		TargetRegions regs = null;
+		try {
+			regs = new TargetRegions(opt.count_regions, genes, dict, shard, opt);
+		}catch(IOException e) {
+			Log.closeWithError("Cannot read regions: "+e.getMessage(), e);
+		}
+		out = openOutput(dict);
+		ArrayList<Alignment> waiting = new ArrayList<>();
+		SingleReadReader sreader = new SingleReadReader(chrs, opt, cnt);
+		PairedReadReader preader = new PairedReadReader(chrs, opt, Integer.MAX_VALUE, waiting, cnt);
+		PairedReadReader mreader = new PairedReadReader(chrs, opt, cnt);
+		sreader.sweep = preader.sweep = new ChrSweep(out);
+		int i = 0;
+		for(SAMSequenceRecord s : dict.getSequences()) {
+			if(regs.get(s.getSequenceName()) == null)
+				continue;
+			i += regs.count(in, s.getSequenceName(), sreader, preader);
+			preader.moveUnpaired(waiting);
+			//mates should be counted before reads of the next chromosome come, then the chromosome is written
+			i += regs.countMates(in, s.getSequenceName(), waiting, mreader);
+			waiting.clear();
+		}
+		if(shard != null && shard.isLast())
+			i += regs.countUnplaced(in);
 		in.close();
+		Log.println(i+" lines parsed");
+		mreader.finish();
 	}
 	
 	public static void countAndPrint() throws IOException {
-		Log.addStat(Log.UNMAPPED, 0);
-		Log.addStat(Log.MULTI_READS, 0);
-		Log.addStat(Log.EXON_READS, 0);
-		Log.addStat(Log.GENE_READS, 0);
-		Log.addStat(Log.JUNCTIONS_CNT, 0);
-		Log.addStat(Log.PAIRED, 0);
-		Log.addStat(Log.SINGLETONS, 0);
-		Log.addStat(Log.TOTAL_READS, 0);
-		Log.addStat(Log.UNKNOWN_JUNCTION, 0);
-		Log.addStat(Log.UNKNOWN_JUNCTION_COMB, 0);
-		Log.addStat(Log.USED_READS, 0);
-		if(Settings.S().getBoolean(Settings.LOOK_FOR_GENE_FOR_UNKNOWN_JUNCTIONS))
-			Log.addStat(Log.NEW_JUNCTIONS_FOUND, 0);
-		Log.println("Count reads: "+Settings.S().getString(Settings.IN)+" -> "+Settings.S().getString(Settings.OUT_BASE));
+		String in = Settings.S().getString(Settings.IN);
+		String out_base = Settings.S().getString(Settings.OUT_BASE);
+		if(isCounted(out_base, new CountOptions(Settings.S())))
+			return;
+		Log.println("Count reads: "+in+" -> "+out_base);
 		ReadCounter r = new ReadCounter();
-		r.countReads();
+		r.in = in;
+		r.out_base = out_base;
+		r.countAndPrint(false);
+	}
+	
+	/**
+	 * joins outputs made by worker processes for shards of chromosomes (see Shard)
+	 * @param in input of the sample
+	 * @param out_base
+	 * @param parts output bases of shards in shard order, their files are deleted
+	 * @throws IOException
+	 */
+	public static void mergeShards(String in,String out_base,String[] parts) throws IOException {
+		CountWriter.merge(in, out_base, parts, new CountOptions(Settings.S()));
+	}
+	
+	/**
+	 * Counts reads for several samples. Annotation is loaded once, then each sample is counted with its own view of it.
+	 * batch_threads samples are counted simultaneously.
+	 * @param in
+	 * @param out_base
+	 */
+	public static void countAndPrint(String[] in,String[] out_base) {
+		for(String f : in)
+			if(f.contains("+"))
+				Log.closeWithError("Several files for one sample ('"+f+"') could be used only with batch_merge: true", null);
+		final ReadCounter ann = new ReadCounter();
+		ExecutorService pool = Executors.newFixedThreadPool(Settings.S().getInt(Settings.BATCH_THREADS));
+		ArrayList<Future<Object>> res = new ArrayList<>();
+		for(int i=0;i<in.length;i++) {
+			if(isCounted(out_base[i], ann.opt))
+				continue;
+			final String sin = in[i];
+			final String sout = out_base[i];
+			res.add(pool.submit(new Callable<Object>() {
+				public Object call() throws IOException {
+					Log.println("Count reads: "+sin+" -> "+sout);
+					new ReadCounter(ann, sin, sout).countAndPrint(true);
+					return null;
+				}
+			}));
+		}
+		pool.shutdown();
 		try {
-			r.printGeneCov(r.genes);
-			r.printSegCov(r.genes);
-			r.printIntronCov();
-			Log.printStat();
-			Log.cleanStat();
-		}catch(IOException e) {
-			Log.closeWithError("Cannot write output: "+e.getMessage(),e);
+			for(Future<Object> r : res)
+				r.get();
+		}catch(InterruptedException | ExecutionException e) {
+			Log.closeWithError("Read counting failed: "+e.getMessage(), e);
 		}
-		
 	}
 	
-	public static boolean accept(SAMRecord r) {
-		if(Settings.S().getInt(Settings.PAIRED)!=0 && r.getReadPairedFlag() && r.getProperPairFlag() && !r.getReferenceIndex().equals(r.getMateReferenceIndex())) { 
+	/**
+	 * counts reads, prints output and statistics (statistics of current thread are cleaned)
+	 * @param batch
+	 * @throws IOException
+	 */
+	private void countAndPrint(boolean batch) throws IOException {
+		initStat();
+		cnt = new Counts(ids, 0);
+		int threads = Settings.S().getInt(Settings.THREADS);
+		if(opt.count_regions != null || !Settings.S().getString(Settings.SHARD).equals("-"))
+			countReadsInRegions();
+		else if(threads > 1)
+			countReadsParallel(threads);
+		else
+			countReads(1);
+		out.close();
+		if(opt.out_matrix != null)
+			CountMatrix.append(opt.out_matrix, out_base, genes, chrs, cnt);
+		Log.printStat(batch?out_base:null);
+		Log.cleanStat();
+		if(Journal.get() != null)
+			Journal.get().done(Run.COUNT_READS, out_base);
+	}
+	
+	/**
+	 * @param out_base
+	 * @param opt
+	 * @return true if the sample is recorded as counted in journal and its output exists, so it should be skipped
+	 */
+	private static boolean isCounted(String out_base,CountOptions opt) {
+		Journal j = Journal.get();
+		if(j == null)
+			return false;
+		//journal is shared by samples, so their input and output are not checked
+		j.checkSettings(Run.COUNT_READS, new String[] {"common","read_counter"}, Settings.IN, Settings.OUT_BASE);
+		if(j.get(Run.COUNT_READS, out_base) == null)
+			return false;
+		if(!CountWriter.exists(out_base, opt)) {
+			Log.warn("Sample '"+out_base+"' is recorded in journal, but its output is not found, it will be counted again.");
+			return false;
+		}
+		Log.println("Sample '"+out_base+"' is already counted (see "+Settings.JOURNAL+"), skipped");
+		return true;
+	}
+	
+	/**
+	 * Counts reads of all samples in single pass. Files (sorted by coordinates) are read simultaneously
+	 * and all samples are counted against the same annotation, each sample into its own column. 
+	 * @param in input files of samples, several files (lanes) of one sample could be joined by '+'
+	 * @param out_base
+	 * @throws IOException
+	 */
+	public static void countAndPrintMerged(String[] in,String[] out_base) throws IOException {
+		String[][] files = new String[in.length][];
+		for(int i=0;i<in.length;i++) {
+			files[i] = in[i].split("\\+");
+			for(String f : files[i])
+				if(!(new File(f)).exists())
+					Log.closeWithError("Input file '"+f+"' doesn't exists",new RuntimeException());
+		}
+		Log.println("Count reads: "+Util.join(in, ",")+" -> "+Util.join(out_base, ","));
+		ReadCounter r = new ReadCounter();
+		if(r.opt.count_regions != null)
+			Log.warn(Settings.COUNT_REGIONS+" is ignored when "+Settings.BATCH_MERGE+" is true, all reads are counted.");
+		if(Journal.get() != null)
+			Log.warn(Settings.JOURNAL+" is not used when "+Settings.BATCH_MERGE+" is true, all samples are counted in single pass.");
+		ArrayList<Stats> stats = new ArrayList<>();
+		Counts[] counts = new Counts[in.length];
+		CountWriter[] outs = new CountWriter[in.length];
+		SingleReadReader[] sreaders = new SingleReadReader[in.length];
+		PairedReadReader[] preaders = new PairedReadReader[in.length];
+		MergedSamIterator it = new MergedSamIterator(files, Settings.S().getInt(Settings.THREADS));
+		for(int col=0;col<in.length;col++) {
+			r.initStat();
+			stats.add(Log.takeStat());
+			counts[col] = new Counts(r.ids, col);
+			outs[col] = new CountWriter(r.chrs, r.genes, in[col], out_base[col], counts[col], it.getSequenceDictionary(), Shard.get(it.getSequenceDictionary()), r.opt);
+			sreaders[col] = new SingleReadReader(r.chrs, r.opt, counts[col]);
+			preaders[col] = new PairedReadReader(r.chrs, r.opt, true, counts[col]);
+			sreaders[col].sweep = preaders[col].sweep = new ChrSweep(outs[col]);
+		}
+		int i = 0;
+		MapIntervals buf = new MapIntervals();
+		int col = -1;
+		while(it.hasNext()) {
+			SAMRecord rec = it.next();
+			if(it.col != col) {
+				col = it.col;
+				Log.setStat(stats.get(col));
+			}
+			if(i % 10000000 == 0) {
+				Log.println(i+" lines parsed");
+			}
+			i++;
+			if(!accept(rec, r.opt))
+				continue;
+			if(!countAsPair(rec, r.opt)) {
+				buf.decode(rec);
+				sreaders[col].read(rec, buf);
+			}else
+				preaders[col].read(new Alignment(rec, buf, r.opt));
+		}
+		it.close();
+		Log.println(i+" lines parsed");
+		for(col=0;col<in.length;col++) {
+			Log.setStat(stats.get(col));
+			preaders[col].finish();
+			outs[col].close();
+			if(r.opt.out_matrix != null)
+				CountMatrix.append(r.opt.out_matrix, out_base[col], r.genes, r.chrs, counts[col]);
+			Log.printStat(out_base[col]);
+		}
+		Log.cleanStat();
+	}
+	
+	private void initStat() {
+		Log.addStat(Stat.UNMAPPED, 0);
+		Log.addStat(Stat.MULTI_READS, 0);
+		Log.addStat(Stat.EXON_READS, 0);
+		Log.addStat(Stat.GENE_READS, 0);
+		Log.addStat(Stat.JUNCTIONS_CNT, 0);
+		Log.addStat(Stat.PAIRED, 0);
+		Log.addStat(Stat.SINGLETONS, 0);
+		Log.addStat(Stat.TOTAL_READS, 0);
+		Log.addStat(Stat.UNKNOWN_JUNCTION, 0);
+		Log.addStat(Stat.UNKNOWN_JUNCTION_COMB, 0);
+		Log.addStat(Stat.USED_READS, 0);
+		if(opt.look_for_gene_for_unknown_junctions)
+			Log.addStat(Stat.NEW_JUNCTIONS_FOUND, 0);
+	}
+	
+	/**
+	 * opens output files of the sample, chromosomes are written in order of given reference sequences
+	 * @param dict
+	 * @return
+	 */
+	private CountWriter openOutput(SAMSequenceDictionary dict) {
+		return new CountWriter(chrs, genes, in, out_base, cnt, dict, Shard.get(dict), opt);
+	}
+	
+	/**
+	 * @param r accepted record
+	 * @return true if record should be counted together with its mate
+	 */
+	static boolean countAsPair(SAMRecord r,CountOptions opt) {
+		return opt.paired && r.getReadPairedFlag() && r.getProperPairFlag();
+	}
+	
+	/**
+	 * counts record in statistics and checks whether it should be used
+	 * @param r
+	 * @return false if record should be skipped
+	 */
+	public static boolean accept(SAMRecord r,CountOptions opt) {
+		Log.statChr(r.getReferenceName());
+		Log.addStat(Stat.TOTAL_READS, 1);
+		if(opt.paired && r.getReadPairedFlag() && r.getProperPairFlag() && !r.getReferenceIndex().equals(r.getMateReferenceIndex())) { 
 			Log.warn("Mates of read '"+r.getReadName()+"' are from different chromosomes, while bam FLAG says that they are properly paired. They will be treated as singletons.");
 			r.setProperPairFlag(false);
 		}
 		if(r.getReadUnmappedFlag()) {
-			Log.addStat(Log.UNMAPPED, 1);
+			Log.addStat(Stat.UNMAPPED, 1);
 			return false;
 		}
 		Integer nh = (Integer)r.getAttribute("NH");
@@ -301,54 +654,12 @@ public class ReadCounter {
 			nh = 1;
 		}
 		if(nh > 1)
-			Log.addStat(Log.MULTI_READS, 1);
+			Log.addStat(Stat.MULTI_READS, 1);
 		if(r.getReadPairedFlag() && r.getProperPairFlag())
-			Log.addStat(Log.PAIRED, 1);
+			Log.addStat(Stat.PAIRED, 1);
 		else
-			Log.addStat(Log.SINGLETONS, 1);
-		return (Settings.S().getBoolean(Settings.USE_MULT) || nh == 1) 
-				&& (Settings.S().getInt(Settings.PAIRED)==0 || Settings.S().getBoolean(Settings.USE_SINGLETONS) || (r.getReadPairedFlag() && r.getProperPairFlag()));
-	}
-	
-	private void printIntronCov() throws FileNotFoundException {
-		PrintStream o = new PrintStream(Settings.S().getString(Settings.OUT_BASE)+".intron");
-		printHeader(o);
-		o.println("chr:start-stop"+(Settings.S().getInt(Settings.STRANDED)==0?"":":strand")+"\treads");
-		for(String c : chrs.keySet()) {
-			ArrayList<Intron> ints = chrs.get(c).getIntrons();
-			Collections.sort(ints);
-			for(Intron i : ints)
-				o.println(c+":"+i.start+"-"+i.stop+(i.strand==0?"":(":"+i.strand))+"\t"+(int)i.getCov());
-		}
-		o.close();
-	}
-	
-	private void printSegCov(ArrayList<Gene> genes) throws FileNotFoundException {
-		PrintStream o = new PrintStream(Settings.S().getString(Settings.OUT_BASE)+".seg");
-		printHeader(o);
-		o.println("segment_id\tinclusion_read\texclusion_read\tinclusion_ratio");
-		for(Gene g : genes) {
-			g.printSegCovs(o);
-		}
-		o.close();
-	}
-	
-	private void printGeneCov(ArrayList<Gene> genes) throws FileNotFoundException {
-		PrintStream o = new PrintStream(Settings.S().getString(Settings.OUT_BASE)+".gene");
-		printHeader(o);
-		o.println("gene_id\treads");
-		for(Gene g : genes) {
-			o.println(g.getId()+"\t"+(int)g.getCov());
-		}
-		o.close();
-	}
-	
-	private void printHeader(PrintStream o) {
-		o.println("#"+new Date()+" - "+Settings.VERSION+" - "+Run.COUNT_READS);
-		HashSet<String> gr = new HashSet<String>();
-		gr.add("common");
-		gr.add("read_counter");
-		o.println("#Settings:");
-		Settings.S().printSettings("#",gr, o);
+			Log.addStat(Stat.SINGLETONS, 1);
+		return (opt.use_mult || nh == 1) 
+				&& (!opt.paired || opt.use_singletons || (r.getReadPairedFlag() && r.getProperPairFlag()));
 	}
 }
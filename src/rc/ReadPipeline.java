@@ -0,0 +1,181 @@
+package rc;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import htsjdk.samtools.SAMFormatException;
+import htsjdk.samtools.SAMRecord;
+import util.CountOptions;
+import util.Log;
+import util.MapIntervals;
+import util.SamInput;
+import util.Stat;
+import util.Stats;
+
+/**
+ * Counts reads in three stages: one thread reads records from bam file, several threads decode them
+ * (validate, filter, parse cigar etc) and the calling thread counts decoded alignments. Records are passed between stages by batches.
+ * Counting stage takes batches in the order they were read, so results do not depend on number of threads.
+ * Number of batches in work is bounded, so reading waits for counting if counting is slower.
+ */
+class ReadPipeline {
+	static final int BATCH_SIZE = 10000;
+	
+	private static class Batch {
+		//number of first record in file
+		final long first;
+		ArrayList<SAMRecord> records = new ArrayList<>(BATCH_SIZE);
+		ArrayList<Alignment> alignments;
+		final CountDownLatch decoded = new CountDownLatch(1);
+		
+		Batch(long first) {
+			this.first = first;
+		}
+	}
+	private static final Batch END = new Batch(0);
+	
+	private final int decoders;
+	private final CountOptions opt;
+	//batches in order of reading, it is the queue that bounds number of batches in work
+	private final ArrayBlockingQueue<Batch> ordered;
+	//batches to be decoded
+	private final LinkedBlockingQueue<Batch> raw = new LinkedBlockingQueue<>();
+	//statistics of queues
+	private long batches = 0;
+	private long raw_depth = 0;
+	private long ordered_depth = 0;
+	private int count_waits = 0;
+	private int read_waits = 0;
+	
+	public ReadPipeline(int decoders,CountOptions opt) {
+		this.decoders = decoders;
+		this.opt = opt;
+		ordered = new ArrayBlockingQueue<>(decoders*2+2);
+	}
+	
+	/**
+	 * @param in
+	 * @param sreader
+	 * @param preader
+	 * @return number of records read
+	 */
+	public int count(final SamInput in,SingleReadReader sreader,PairedReadReader preader) {
+		ExecutorService pool = Executors.newFixedThreadPool(decoders+1);
+		Future<Integer> reader = pool.submit(new Callable<Integer>() {
+			public Integer call() throws InterruptedException {
+				return read(in);
+			}
+		});
+		ArrayList<Future<Stats>> stats = new ArrayList<>();
+		for(int i=0;i<decoders;i++)
+			stats.add(pool.submit(new Callable<Stats>() {
+				public Stats call() throws InterruptedException {
+					decode();
+					return Log.takeStat();
+				}
+			}));
+		pool.shutdown();
+		int records = 0;
+		try {
+			for(;;) {
+				raw_depth += raw.size();
+				ordered_depth += ordered.size();
+				Batch b = ordered.take();
+				if(b == END)
+					break;
+				batches++;
+				if(b.decoded.getCount() != 0)
+					count_waits++;
+				b.decoded.await();
+				for(Alignment a : b.alignments) {
+					if(!a.pair)
+						sreader.read(a);
+					else
+						preader.read(a);
+				}
+			}
+			records = reader.get();
+			for(Future<Stats> s : stats)
+				Log.mergeStat(s.get());
+		}catch(InterruptedException | ExecutionException e) {
+			Log.closeWithError("Read counting failed: "+e.getMessage(), e);
+		}
+		Log.println("Read pipeline: "+decoders+" decoding threads; "+batches+" batches; " +
+				"average queue length for decoding="+String.format("%.2f", (double)raw_depth/Math.max(1,batches))+
+				", for counting="+String.format("%.2f", (double)ordered_depth/Math.max(1,batches))+"; "+
+				"reading waited "+read_waits+" times, counting waited for decoding "+count_waits+" times");
+		return records;
+	}
+	
+	private int read(SamInput in) throws InterruptedException {
+		int i = 0;
+		Batch b = new Batch(1);
+		try {
+			for(;;) {
+				try{
+					if(!in.hasNext())
+						break;
+					b.records.add(in.next());
+				}catch(SAMFormatException e){
+					Log.throwUncrucialExc("Something wrong with read SAM format: "+e.getMessage()+".\n"
+							+ "The read was skipped.");
+					continue;
+				}
+				if(i % 10000000 == 0)
+					Log.println(i+" lines parsed");
+				i++;
+				if(b.records.size() == BATCH_SIZE) {
+					submit(b);
+					b = new Batch(i+1);
+				}
+			}
+			submit(b);
+		}catch(RuntimeException e) {
+			Log.closeWithError("Cannot read input: "+e.getMessage(), e);
+		}finally {
+			ordered.put(END);
+			for(int j=0;j<decoders;j++)
+				raw.put(END);
+		}
+		return i;
+	}
+	
+	private void submit(Batch b) throws InterruptedException {
+		if(ordered.remainingCapacity() == 0)
+			read_waits++;
+		ordered.put(b);
+		raw.put(b);
+	}
+	
+	private void decode() throws InterruptedException {
+		MapIntervals buf = new MapIntervals();
+		for(Batch b = raw.take();b != END;b = raw.take()) {
+			ArrayList<Alignment> r = new ArrayList<>(b.records.size());
+			try {
+				for(int j=0;j<b.records.size();j++) {
+					SAMRecord rec = b.records.get(j);
+					try{
+						SamInput.validate(rec, b.first+j);
+						if(ReadCounter.accept(rec, opt))
+							r.add(new Alignment(rec, buf, opt));
+					}catch(SAMFormatException e){
+						Log.throwUncrucialExc("Something wrong with read SAM format: "+e.getMessage()+".\n"
+								+ "The read was skipped.");
+					}
+				}
+			}catch(RuntimeException e) {
+				Log.closeWithError("Cannot decode input: "+e.getMessage(), e);
+			}
+			b.records = null;
+			b.alignments = r;
+			b.decoded.countDown();
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package rc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SamReader;
+import util.CountOptions;
+import util.MapIntervals;
+import util.SamInput;
+import util.Stat;
+import util.bio.ChrAnnotation;
+import util.bio.Counts;
+
+/**
+ * Counts reads that start within region of chromosome, used for parallel read counting.
+ * Reads (or pairs) that do not lie within the region are not counted but deferred, 
+ * they should be counted later against annotation of whole chromosome.
+ */
+class RegionCounter {
+	final ChrAnnotation chr;
+	final ChrAnnotation part;
+	final int start;
+	final int stop;
+	final CountOptions opt;
+	ArrayList<Alignment> deferred = new ArrayList<>();
+	int records = 0;
+	boolean used = false;
+	//reused for all records of the region
+	private final MapIntervals buf = new MapIntervals();
+	
+	/**
+	 * @param chr annotation of whole chromosome, null for unplaced reads
+	 * @param start
+	 * @param stop
+	 * @param part annotation to count reads within region (either chr itself or its subset)
+	 * @param opt
+	 */
+	public RegionCounter(ChrAnnotation chr,int start,int stop,ChrAnnotation part,CountOptions opt) {
+		this.chr = chr;
+		this.opt = opt;
+		this.start = start;
+		this.stop = stop;
+		this.part = part;
+	}
+	
+	/**
+	 * @param in
+	 * @param cnt counts of the thread, reads of the region are added to them
+	 */
+	public void count(SamReader in,Counts cnt) {
+		if(chr == null) {
+			countUnplaced(in);
+			return;
+		}
+		HashMap<String, ChrAnnotation> chrs = new HashMap<>();
+		chrs.put(chr.getID(), part);
+		SingleReadReader sreader = new SingleReadReader(chrs, opt, cnt);
+		PairedReadReader preader = new PairedReadReader(chrs, opt, stop, deferred, cnt);
+		SAMRecordIterator it = in.query(chr.getID(), start, stop, false);
+		for(SAMRecord r = SamInput.next(it);r != null;r = SamInput.next(it)) {
+			//reads that start in other regions are counted there
+			if(r.getAlignmentStart() < start || r.getAlignmentStart() > stop)
+				continue;
+			records++;
+			if(!ReadCounter.accept(r, opt))
+				continue;
+			used = true;
+			if(!ReadCounter.countAsPair(r, opt)) {
+				//single read that ends in other region is rare, it is decoded again for Alignment then
+				if(buf.decode(r) > 0 && buf.data[buf.length-1] > stop)
+					deferred.add(new Alignment(r, buf, opt));
+				else
+					sreader.read(r, buf);
+			}else if(r.getMateAlignmentStart() < start || r.getMateAlignmentStart() > stop)
+				deferred.add(new Alignment(r, buf, opt));
+			else
+				preader.read(new Alignment(r, buf, opt));
+		}
+		it.close();
+		preader.moveUnpaired(deferred);
+		//whole chromosome is used later to count deferred reads
+		if(part != chr)
+			part.release();
+	}
+	
+	private void countUnplaced(SamReader in) {
+		SAMRecordIterator it = in.queryUnmapped();
+		for(SAMRecord r = SamInput.next(it);r != null;r = SamInput.next(it)) {
+			records++;
+			if(ReadCounter.accept(r, opt))
+				deferred.add(new Alignment(r, buf, opt));
+		}
+		it.close();
+	}
+}
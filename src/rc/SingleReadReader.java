@@ -0,0 +1,63 @@
+package rc;
+
+import java.util.HashMap;
+
+import htsjdk.samtools.SAMRecord;
+import util.CountOptions;
+import util.MapIntervals;
+import util.bio.ChrAnnotation;
+import util.bio.Counts;
+
+class SingleReadReader {
+	HashMap<String, ChrAnnotation> chrs;
+	final CountOptions opt;
+	final Counts cnt;
+	//if input is sorted by coordinates, chromosomes are written and released once reads of the next chromosome come
+	ChrSweep sweep = null;
+	
+	public SingleReadReader(HashMap<String, ChrAnnotation> chrs,CountOptions opt,Counts cnt) {
+		this.chrs = chrs;
+		this.opt = opt;
+		this.cnt = cnt;
+	}
+
+	public void read(Alignment r) {
+		ChrAnnotation c = getChr(r.chr);
+		if(sweep != null && !sweep.next(c))
+			return;
+		c.addRead(r.inters, getStrand(r.negative, r.paired, r.first, r.xs), cnt);
+	}
+	
+	/**
+	 * counts record without making Alignment, for reads that are counted as soon as they are read
+	 * @param r accepted record that is not counted as pair (see ReadCounter.countAsPair)
+	 * @param buf mapped blocks of the record (see MapIntervals.decode), could be reused for next record
+	 */
+	public void read(SAMRecord r,MapIntervals buf) {
+		ChrAnnotation c = getChr(r.getReferenceName());
+		if(sweep != null && !sweep.next(c))
+			return;
+		boolean paired = r.getReadPairedFlag();
+		Character xs = r.getCharacterAttribute("XS");
+		c.addRead(buf.data, buf.length, getStrand(r.getReadNegativeStrandFlag(), paired, paired && r.getFirstOfPairFlag(), xs == null?0:xs), cnt);
+	}
+	
+	private ChrAnnotation getChr(String chr) {
+		ChrAnnotation c = chrs.get(chr);
+		if(c==null){
+			c = new ChrAnnotation(chr, opt, cnt.ids);
+			c.loaded();
+			chrs.put(chr,c);
+		}
+		return c;
+	}
+	
+	private int getStrand(boolean negative,boolean paired,boolean first,char xs) {
+		int strand = opt.stranded*(negative?-1:1);
+		if(paired && !first)
+			strand = -strand;
+		if(xs != 0) //prabably it whould be better to check that it isn't contradict to getReadNegativeStrandFlag...
+			strand = xs == '+'?1:-1;
+		return strand;
+	}
+}
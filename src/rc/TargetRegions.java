@@ -0,0 +1,218 @@
+package rc;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import htsjdk.samtools.QueryInterval;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReader;
+import util.CountOptions;
+import util.Log;
+import util.MapIntervals;
+import util.SamInput;
+import util.Shard;
+import util.bio.ChrAnnotation;
+import util.bio.Gene;
+
+/**
+ * Regions of genome to be counted (see count_regions): bodies of all genes, of listed genes, regions from bed file or whole chromosomes of shard.
+ * Only index chunks that overlap regions are read, each record is returned once even if it overlaps several regions.
+ * Mates that do not overlap regions are looked for by their positions, so pairs are counted as in whole file.
+ */
+class TargetRegions {
+	private final SAMSequenceDictionary dict;
+	private final Shard shard;
+	//merged regions by reference index
+	private final HashMap<Integer, QueryInterval[]> regs = new HashMap<>();
+	private final CountOptions opt;
+	private final MapIntervals buf = new MapIntervals();
+
+	/**
+	 * @param spec 'genes', bed file (.bed extension) or file with gene ids (one per line); null for whole chromosomes
+	 * @param genes all genes of annotation
+	 * @param dict reference sequences of input
+	 * @param shard if not null, only regions on chromosomes of the shard are used
+	 * @param opt
+	 * @throws IOException
+	 */
+	TargetRegions(String spec,ArrayList<Gene> genes,SAMSequenceDictionary dict,Shard shard,CountOptions opt) throws IOException {
+		this.dict = dict;
+		this.shard = shard;
+		this.opt = opt;
+		ArrayList<QueryInterval> r = new ArrayList<>();
+		if(spec == null) {
+			for(SAMSequenceRecord s : dict.getSequences())
+				add(r, s.getSequenceName(), 1, s.getSequenceLength());
+		}else if(spec.endsWith(".bed")) {
+			BufferedReader in = new BufferedReader(new FileReader(spec));
+			for(String l = in.readLine();l != null;l = in.readLine()) {
+				if(l.length() == 0 || l.startsWith("#") || l.startsWith("track") || l.startsWith("browser"))
+					continue;
+				String[] t = l.split("\t");
+				try {
+					//bed is 0-based, stop is excluded
+					add(r, t[0], Integer.parseInt(t[1])+1, Integer.parseInt(t[2]));
+				}catch(NumberFormatException | ArrayIndexOutOfBoundsException e) {
+					in.close();
+					throw new IOException("Wrong line in bed file '"+spec+"': "+l);
+				}
+			}
+			in.close();
+		}else {
+			HashSet<String> ids = null;
+			if(!spec.equals("genes")) {
+				ids = new HashSet<>();
+				BufferedReader in = new BufferedReader(new FileReader(spec));
+				for(String l = in.readLine();l != null;l = in.readLine())
+					if(l.trim().length() > 0)
+						ids.add(l.trim());
+				in.close();
+			}
+			int found = 0;
+			for(Gene g : genes)
+				if(ids == null || ids.contains(g.getId())) {
+					add(r, g.chr_id, g.start, g.stop);
+					found++;
+				}
+			if(ids != null && found < ids.size())
+				Log.warn((ids.size()-found)+" genes from '"+spec+"' are not found in annotation.");
+		}
+		QueryInterval[] all = QueryInterval.optimizeIntervals(r.toArray(new QueryInterval[r.size()]));
+		int from = 0;
+		long len = 0;
+		for(int i=0;i<=all.length;i++) {
+			if(i == all.length || all[i].referenceIndex != all[from].referenceIndex) {
+				if(i > from)
+					regs.put(all[from].referenceIndex, Arrays.copyOfRange(all, from, i));
+				from = i;
+			}
+			if(i < all.length)
+				len += all[i].end-all[i].start+1;
+		}
+		Log.println("Reads will be counted in "+all.length+" regions of total length "+len);
+	}
+
+	private void add(ArrayList<QueryInterval> r,String chr,int start,int stop) {
+		int inx = dict.getSequenceIndex(chr);
+		if(inx >= 0 && start <= stop && (shard == null || shard.contains(chr)))
+			r.add(new QueryInterval(inx, start, stop));
+	}
+
+	/**
+	 * @param chr
+	 * @return merged regions of chromosome ordered by coordinates, null if there are no regions on it
+	 */
+	QueryInterval[] get(String chr) {
+		return regs.get(dict.getSequenceIndex(chr));
+	}
+
+	/**
+	 * @param regions of chromosome
+	 * @param start
+	 * @param stop
+	 * @return true if interval overlaps any of regions
+	 */
+	static boolean overlaps(QueryInterval[] regions,int start,int stop) {
+		int l = 0;
+		int r = regions.length-1;
+		//first region that ends at or after start
+		while(l <= r) {
+			int m = (l+r) >>> 1;
+			if(regions[m].end < start)
+				l = m+1;
+			else
+				r = m-1;
+		}
+		return l < regions.length && regions[l].start <= stop;
+	}
+
+	/**
+	 * Counts records of chromosome that overlap its regions
+	 * @param in
+	 * @param chr
+	 * @param sreader
+	 * @param preader should defer records that mates are not found
+	 * @return number of records read
+	 */
+	int count(SamReader in,String chr,SingleReadReader sreader,PairedReadReader preader) {
+		int records = 0;
+		SAMRecordIterator it = in.query(get(chr), false);
+		for(SAMRecord r = SamInput.next(it);r != null;r = SamInput.next(it)) {
+			records++;
+			if(!ReadCounter.accept(r, opt))
+				continue;
+			if(!ReadCounter.countAsPair(r, opt)) {
+				buf.decode(r);
+				sreader.read(r, buf);
+			}else
+				preader.read(new Alignment(r, buf, opt));
+		}
+		it.close();
+		return records;
+	}
+
+	/**
+	 * Looks for mates of records that were not found within regions (mates that do not overlap regions).
+	 * Records together with found mates are passed to reader.
+	 * @param in
+	 * @param chr
+	 * @param waiting records of chromosome without mates
+	 * @param preader
+	 * @return number of records read
+	 */
+	int countMates(SamReader in,String chr,ArrayList<Alignment> waiting,PairedReadReader preader) {
+		if(waiting.isEmpty())
+			return 0;
+		QueryInterval[] regions = get(chr);
+		HashSet<String> keys = new HashSet<>();
+		QueryInterval[] pos = new QueryInterval[waiting.size()];
+		int inx = dict.getSequenceIndex(chr);
+		for(int i=0;i<pos.length;i++) {
+			Alignment a = waiting.get(i);
+			keys.add(a.name+"\t"+a.mate_start+"\t"+a.start);
+			pos[i] = new QueryInterval(inx, a.mate_start, a.mate_start);
+			preader.read(a);
+		}
+		int records = 0;
+		SAMRecordIterator it = in.query(QueryInterval.optimizeIntervals(pos), false);
+		for(SAMRecord r = SamInput.next(it);r != null;r = SamInput.next(it)) {
+			if(!keys.contains(r.getReadName()+"\t"+r.getAlignmentStart()+"\t"+r.getMateAlignmentStart()))
+				continue;
+			//record was already read within regions
+			if(overlaps(regions, r.getAlignmentStart(), r.getAlignmentEnd()))
+				continue;
+			records++;
+			if(!ReadCounter.accept(r, opt))
+				continue;
+			Alignment a = new Alignment(r, buf, opt);
+			if(a.pair)
+				preader.read(a);
+		}
+		it.close();
+		return records;
+	}
+
+	/**
+	 * reads records that are not placed on chromosomes, they are not counted but added to statistics
+	 * @param in
+	 * @return number of records read
+	 */
+	int countUnplaced(SamReader in) {
+		int records = 0;
+		SAMRecordIterator it = in.queryUnmapped();
+		for(SAMRecord r = SamInput.next(it);r != null;r = SamInput.next(it)) {
+			ReadCounter.accept(r, opt);
+			records++;
+		}
+		it.close();
+		return records;
+	}
+}
@@ -16,6 +16,7 @@ import ann.TranscExtractor;
 public class Run {
 	public static final String ANNOTATE = "annotate";
 	public static final String COUNT_READS = "count_reads";
+	public static final String COMPILE_ANNOTATION = "compile_annotation";
 	public static final String GFF2SAJR = "gff2sajr";
 	public static final String GFF32SAJR = "gff32sajr";
 	public static final String SAJRCOMP = "sajrcomp";
@@ -34,6 +35,9 @@ public class Run {
 			printHelp();
 			return;
 		}
+		//several worker processes
+		if(ShardRunner.run(args))
+			return;
 		switch(args[0]) {
 		case ANNOTATE:
 			new Annotator().annotate();
@@ -49,13 +53,15 @@ public class Run {
 					Log.closeWithError("Number of elements in batch_in isn't equal to number of elements in batch_out", null);
 					return;
 				}
-				for(int i=0;i<in.length;i++) {
-					 Settings.S().set(Settings.IN, in[i]);
-					 Settings.S().set(Settings.OUT_BASE, out[i]);
-					 ReadCounter.countAndPrint();
-				}
+				if(Settings.S().getBoolean(Settings.BATCH_MERGE))
+					ReadCounter.countAndPrintMerged(in, out);
+				else
+					ReadCounter.countAndPrint(in, out);
 			}
 			break;
+		case COMPILE_ANNOTATION:
+			ReadCounter.compileAnnotation();
+			break;
 		case GFF2SAJR:
 			Gff2SAJR.gff2sajr();
 			break;
@@ -125,7 +131,7 @@ public class Run {
 		System.out.println("cite: P. Mazin et al. MSB 9:633 (2013).");
 		System.out.println("Moscow 2012 -> Saffron Walden 2024");
 		System.out.println();
-		System.out.println("usage: method={count_reads|gff2sajr|gff32sajr|annotate|sajrcomp|sajr2transc} [settings file] [optionis]");
+		System.out.println("usage: method={count_reads|compile_annotation|gff2sajr|gff32sajr|annotate|sajrcomp|sajr2transc} [settings file] [optionis]");
 		System.out.println("Options, in form of -option_name=value can be used to overwride any settings from settings file");
 		System.out.println("Example: java -jar count_reads -batch_in=sample1.bam -batch_out=sample1");
 	}
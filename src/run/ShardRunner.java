@@ -0,0 +1,193 @@
+package run;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import ann.GFFPrinter;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import rc.ReadCounter;
+import util.Log;
+import util.Settings;
+import util.Stats;
+import util.Util;
+
+/**
+ * Runs count_reads or annotate by several worker processes (separate JVMs, see processes and process_memory).
+ * Chromosomes are split into shards (see util.Shard), each worker processes its shard and writes its own output,
+ * then outputs of workers are joined in shard order and statistics of workers are summed.
+ */
+public class ShardRunner {
+	private final String[] args;
+	private final String method;
+	private final int n;
+	//outputs by samples (one for annotate)
+	private String[] in;
+	private String[] out;
+	private boolean batch;
+
+	private ShardRunner(String[] args,int n) {
+		this.args = args;
+		this.method = args[0];
+		this.n = n;
+	}
+
+	/**
+	 * @param args command line arguments
+	 * @return false if method should be run in current process
+	 * @throws IOException
+	 */
+	public static boolean run(String[] args) throws IOException {
+		int n = Settings.S().getInt(Settings.PROCESSES);
+		if(n < 2 || !Settings.S().getString(Settings.SHARD).equals("-"))
+			return false;
+		if(!args[0].equals(Run.COUNT_READS) && !args[0].equals(Run.ANNOTATE))
+			return false;
+		if(args[0].equals(Run.COUNT_READS) && !Settings.S().getString(Settings.BATCH_IN).equals("null") && Settings.S().getBoolean(Settings.BATCH_MERGE)) {
+			Log.warn(Settings.PROCESSES+" is ignored when "+Settings.BATCH_MERGE+" is true, reads are counted by current process.");
+			return false;
+		}
+		new ShardRunner(args, n).run();
+		return true;
+	}
+
+	private void run() throws IOException {
+		if(method.equals(Run.ANNOTATE)) {
+			in = new String[] {Settings.S().getString(Settings.IN)};
+			out = new String[] {Settings.S().getString(Settings.ANN_OUT)};
+		}else if(Settings.S().getString(Settings.BATCH_IN).equals("null")) {
+			in = new String[] {Settings.S().getString(Settings.IN)};
+			out = new String[] {Settings.S().getString(Settings.OUT_BASE)};
+		}else {
+			batch = true;
+			in = Settings.S().getString(Settings.BATCH_IN).split(",");
+			out = Settings.S().getString(Settings.BATCH_OUT).split(",");
+			if(in.length != out.length)
+				Log.closeWithError("Number of elements in batch_in isn't equal to number of elements in batch_out", null);
+		}
+		for(String f : in) {
+			if(!(new File(f)).exists())
+				Log.closeWithError("Input file '"+f+"' doesn't exists",new RuntimeException());
+			SamReader r = SamReaderFactory.makeDefault().open(new File(f));
+			if(!r.hasIndex())
+				Log.warn("Input file '"+f+"' has no index, each worker will read whole file.");
+			r.close();
+		}
+		if(method.equals(Run.COUNT_READS) && !Settings.S().getString(Settings.OUT_MATRIX).equals("-"))
+			Log.warn(Settings.OUT_MATRIX+" is not written when "+Settings.PROCESSES+" is more than 1.");
+		Log.println("Run "+method+" by "+n+" worker processes");
+		//start workers
+		Process[] ps = new Process[n];
+		File[] logs = new File[n];
+		for(int k=0;k<n;k++) {
+			logs[k] = new File(out[0]+".shard"+k+".log");
+			ProcessBuilder pb = new ProcessBuilder(command(k));
+			pb.redirectErrorStream(true);
+			pb.redirectOutput(logs[k]);
+			ps[k] = pb.start();
+		}
+		//wait
+		for(int k=0;k<n;k++) {
+			int code = -1;
+			try {
+				code = ps[k].waitFor();
+			}catch(InterruptedException e) {
+				Log.closeWithError("Interrupted while waiting for worker "+k, e);
+			}
+			List<String> log = Files.readAllLines(logs[k].toPath());
+			//fatal errors are printed to stderr, Log.closeWithError exits with 0
+			for(String l : log)
+				if(l.startsWith("[FATAL EXCEPTION]"))
+					code = code == 0?1:code;
+			if(code != 0)
+				Log.closeWithError("Worker "+k+" failed (exit code "+code+"), its output:\n"+Util.join(log, "\n"), null);
+		}
+		Log.println("All workers are done, merge outputs");
+		//merge
+		for(int i=0;i<out.length;i++) {
+			String[] parts = new String[n];
+			for(int k=0;k<n;k++)
+				parts[k] = shardOut(out[i], k);
+			if(method.equals(Run.ANNOTATE))
+				GFFPrinter.merge(parts, out[i]);
+			else
+				ReadCounter.mergeShards(in[i], out[i], parts);
+		}
+		printStat(logs);
+		for(int k=0;k<n;k++) {
+			logs[k].delete();
+			if(!Settings.S().getString(Settings.JOURNAL).equals("-"))
+				new File(shardOut(Settings.S().getString(Settings.JOURNAL), k)).delete();
+		}
+	}
+
+	private static String shardOut(String out,int k) {
+		return out+".shard"+k;
+	}
+
+	/**
+	 * @param k
+	 * @return command line of worker k: the same method, settings and options as of current process,
+	 * with shard, output and id_prefix overwritten
+	 */
+	private List<String> command(int k) {
+		ArrayList<String> r = new ArrayList<>();
+		r.add(System.getProperty("java.home")+File.separator+"bin"+File.separator+"java");
+		r.add("-Xmx"+Settings.S().getString(Settings.PROCESS_MEMORY));
+		r.add("-cp");
+		r.add(System.getProperty("java.class.path"));
+		r.add(Run.class.getName());
+		r.addAll(Arrays.asList(args));
+		r.add("-"+Settings.PROCESSES+"=1");
+		r.add("-"+Settings.SHARD+"="+k+"/"+n);
+		//each worker has its own journal, so restarted coordinator restarts workers that resume their work
+		if(!Settings.S().getString(Settings.JOURNAL).equals("-"))
+			r.add("-"+Settings.JOURNAL+"="+shardOut(Settings.S().getString(Settings.JOURNAL), k));
+		String[] o = new String[out.length];
+		for(int i=0;i<o.length;i++)
+			o[i] = shardOut(out[i], k);
+		if(method.equals(Run.ANNOTATE)) {
+			r.add("-"+Settings.ANN_OUT+"="+o[0]);
+			r.add("-"+Settings.ID_PREFIX+"="+GFFPrinter.SHARD_ID_PREFIX);
+		}else {
+			r.add("-"+(batch?Settings.BATCH_OUT:Settings.OUT_BASE)+"="+Util.join(o, ","));
+			r.add("-"+Settings.OUT_MATRIX+"=-");
+		}
+		return r;
+	}
+
+	/**
+	 * sums statistics printed by workers and prints it
+	 * @param logs
+	 * @throws IOException
+	 */
+	private void printStat(File[] logs) throws IOException {
+		LinkedHashMap<String, Stats> stats = new LinkedHashMap<>();
+		for(String o : out)
+			stats.put(o, new Stats(Settings.S().getBoolean(Settings.STAT_BY_CHR)));
+		for(int k=0;k<logs.length;k++) {
+			List<String> log = Files.readAllLines(logs[k].toPath());
+			for(int i=0;i<log.size();i++) {
+				int s = log.get(i).indexOf("] Statistics");
+				if(s == -1 || !log.get(i).endsWith(":"))
+					continue;
+				String name = log.get(i).substring(s+"] Statistics".length(), log.get(i).length()-1);
+				Stats st = stats.get(out[0]);
+				for(String o : out)
+					if(name.equals(" for "+shardOut(o, k)))
+						st = stats.get(o);
+				i = st.addPrinted(log, i+1)-1;
+			}
+		}
+		for(String o : out) {
+			Log.setStat(stats.get(o));
+			Log.printStat(batch?o:null);
+		}
+		Log.cleanStat();
+	}
+}
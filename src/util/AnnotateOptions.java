@@ -0,0 +1,42 @@
+package util;
+
+/**
+ * Immutable snapshot of settings used to make annotation from reads (see CountOptions).
+ */
+public class AnnotateOptions {
+	//read filtering and strand
+	public final CountOptions reads;
+	public final double site_usage_freq;
+	public final double min_cov;
+	public final int max_cov_gap;
+	public final int min_single_exon_gene_length;
+	public final double min_single_exon_gene_cov;
+	public final int junc_overhang;
+	public final int indep_pos;
+	public final int cov_win_len;
+	public final double max_cov_step;
+	public final boolean fill_ns;
+	public final double foreign_junc_cov;
+	
+	public AnnotateOptions(Settings s) {
+		reads = new CountOptions(s);
+		site_usage_freq = s.getDouble(Settings.SITE_USAGE_FREQ);
+		min_cov = s.getDouble(Settings.MIN_COV);
+		max_cov_gap = s.getInt(Settings.MAX_COV_GAP);
+		min_single_exon_gene_length = s.getInt(Settings.MIN_SINGLE_EXON_GENE_LENGTH);
+		min_single_exon_gene_cov = s.getDouble(Settings.MIN_SINGLE_EXON_GENE_COV);
+		junc_overhang = s.getInt(Settings.JUNC_OVERHANG);
+		indep_pos = s.getInt(Settings.INDEP_POS);
+		cov_win_len = s.getInt(Settings.COV_WIN_LEN);
+		max_cov_step = s.getDouble(Settings.MAX_COV_STEP);
+		fill_ns = s.getBoolean(Settings.FILL_NS);
+		foreign_junc_cov = s.getDouble(Settings.FOREIGN_JUNC_COV);
+		
+		if(site_usage_freq < 0 || site_usage_freq > 1)
+			Log.closeWithError("Wrong value for parameter "+Settings.SITE_USAGE_FREQ+" = "+site_usage_freq+". It should be within [0,1].", null);
+		if(max_cov_gap < 0)
+			Log.closeWithError("Wrong value for parameter "+Settings.MAX_COV_GAP+" = "+max_cov_gap+". It should be non-negative.", null);
+		if(cov_win_len < 1)
+			Log.closeWithError("Wrong value for parameter "+Settings.COV_WIN_LEN+" = "+cov_win_len+". It should be positive.", null);
+	}
+}
@@ -0,0 +1,217 @@
+package util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads BGZF file (blocked gzip, used by BAM) and returns decompressed data.
+ * Compressed blocks are read ahead and inflated by thread pool, decompressed blocks are returned in the file order.
+ */
+public class BGZFInputStream extends InputStream {
+	private static final int HEADER_LENGTH = 12;
+	private static final int FOOTER_LENGTH = 8;
+	
+	private static final ThreadLocal<Inflater> inflater = new ThreadLocal<Inflater>() {
+		protected Inflater initialValue() {
+			return new Inflater(true);
+		}
+	};
+	
+	private final InputStream in;
+	private final ExecutorService pool;
+	private final int ahead;
+	private final ArrayDeque<Future<byte[]>> blocks = new ArrayDeque<>();
+	private boolean eof = false;
+	private byte[] block = new byte[0];
+	private int pos = 0;
+	
+	/**
+	 * @param in compressed stream
+	 * @param pool threads to inflate blocks
+	 * @param ahead maximal number of blocks to be read ahead
+	 */
+	public BGZFInputStream(InputStream in,ExecutorService pool,int ahead) {
+		this.in = in;
+		this.pool = pool;
+		this.ahead = ahead;
+	}
+	
+	/**
+	 * Checks whether stream starts with BGZF block header. Stream should support mark.
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public static boolean isBGZF(InputStream in) throws IOException {
+		byte[] h = new byte[HEADER_LENGTH+6];
+		in.mark(h.length);
+		int l = readFully(in, h, 0, h.length);
+		in.reset();
+		return l == h.length && isHeader(h) && u16(h, 10) == 6 && h[12] == 'B' && h[13] == 'C' && u16(h, 14) == 2;
+	}
+	
+	@Override
+	public int read() throws IOException {
+		if(!available(1))
+			return -1;
+		return block[pos++] & 0xff;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(len == 0)
+			return 0;
+		if(!available(1))
+			return -1;
+		int r = 0;
+		while(r < len && available(1)) {
+			int l = Math.min(len-r, block.length-pos);
+			System.arraycopy(block, pos, b, off+r, l);
+			pos += l;
+			r += l;
+			//do not wait for next block if something is already read
+			if(blocks.isEmpty() || !blocks.peek().isDone())
+				break;
+		}
+		return r;
+	}
+	
+	@Override
+	public int available() {
+		return block.length-pos;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		for(Future<byte[]> f : blocks)
+			f.cancel(false);
+		blocks.clear();
+		in.close();
+	}
+	
+	/**
+	 * @param n
+	 * @return true if there are at least n bytes in current block, moves to next non-empty block if needed
+	 * @throws IOException
+	 */
+	private boolean available(int n) throws IOException {
+		while(block.length-pos < n) {
+			readAhead();
+			if(blocks.isEmpty())
+				return false;
+			try {
+				block = blocks.poll().get();
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			} catch (ExecutionException e) {
+				if(e.getCause() instanceof IOException)
+					throw (IOException)e.getCause();
+				throw new IOException(e.getCause());
+			}
+			pos = 0;
+		}
+		return true;
+	}
+	
+	private void readAhead() throws IOException {
+		while(!eof && blocks.size() < ahead) {
+			final byte[] c = readBlock();
+			if(c == null) {
+				eof = true;
+				break;
+			}
+			blocks.add(pool.submit(new Callable<byte[]>() {
+				public byte[] call() throws IOException {
+					return inflate(c);
+				}
+			}));
+		}
+	}
+	
+	/**
+	 * @return whole compressed block or null if there are no more blocks
+	 * @throws IOException
+	 */
+	private byte[] readBlock() throws IOException {
+		byte[] h = new byte[HEADER_LENGTH];
+		int l = readFully(in, h, 0, h.length);
+		if(l == 0)
+			return null;
+		if(l < h.length)
+			throw new EOFException("Unexpected end of BGZF file");
+		if(!isHeader(h))
+			throw new IOException("Wrong BGZF block header");
+		int xlen = u16(h, 10);
+		byte[] extra = new byte[xlen];
+		if(readFully(in, extra, 0, xlen) < xlen)
+			throw new EOFException("Unexpected end of BGZF file");
+		int bsize = -1;
+		for(int i=0;i+4<=xlen;i += 4+u16(extra, i+2))
+			if(extra[i] == 'B' && extra[i+1] == 'C' && u16(extra, i+2) == 2)
+				bsize = u16(extra, i+4);
+		if(bsize == -1)
+			throw new IOException("BGZF block size is not specified");
+		byte[] r = new byte[bsize+1];
+		if(r.length < HEADER_LENGTH+xlen+FOOTER_LENGTH)
+			throw new IOException("Wrong BGZF block size");
+		System.arraycopy(h, 0, r, 0, h.length);
+		System.arraycopy(extra, 0, r, h.length, xlen);
+		l = HEADER_LENGTH+xlen;
+		if(readFully(in, r, l, r.length-l) < r.length-l)
+			throw new EOFException("Unexpected end of BGZF file");
+		return r;
+	}
+	
+	private static byte[] inflate(byte[] c) throws IOException {
+		int off = HEADER_LENGTH+u16(c, 10);
+		int len = c.length-off-FOOTER_LENGTH;
+		int crc = s32(c, c.length-8);
+		byte[] r = new byte[s32(c, c.length-4)];
+		Inflater inf = inflater.get();
+		inf.reset();
+		inf.setInput(c, off, len);
+		try {
+			if(inf.inflate(r) != r.length)
+				throw new IOException("Wrong size of inflated BGZF block");
+		} catch (DataFormatException e) {
+			throw new IOException(e);
+		}
+		CRC32 crc32 = new CRC32();
+		crc32.update(r);
+		if((int)crc32.getValue() != crc)
+			throw new IOException("CRC mismatch in BGZF block");
+		return r;
+	}
+	
+	private static boolean isHeader(byte[] h) {
+		return (h[0] & 0xff) == 31 && (h[1] & 0xff) == 139 && h[2] == 8 && (h[3] & 4) != 0;
+	}
+	
+	private static int u16(byte[] b,int i) {
+		return (b[i] & 0xff) | (b[i+1] & 0xff) << 8;
+	}
+	
+	private static int s32(byte[] b,int i) {
+		return u16(b, i) | u16(b, i+2) << 16;
+	}
+	
+	private static int readFully(InputStream in,byte[] b,int off,int len) throws IOException {
+		int r = 0;
+		while(r < len) {
+			int l = in.read(b, off+r, len-r);
+			if(l == -1)
+				break;
+			r += l;
+		}
+		return r;
+	}
+}
@@ -0,0 +1,149 @@
+package util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes BGZF file (blocked gzip, see BGZFInputStream), it could be read by any gzip reader.
+ * Data is split into blocks that are deflated by thread pool and written in the original order.
+ */
+public class BGZFOutputStream extends OutputStream {
+	//the same limit as in htsjdk, so deflated block always fits into 64k
+	private static final int BLOCK_SIZE = 0xff00;
+	private static final int MAX_BLOCK_SIZE = 1<<16;
+	private static final int HEADER_LENGTH = 18;
+	private static final int FOOTER_LENGTH = 8;
+	private static final byte[] EOF_BLOCK = {31,-117,8,4,0,0,0,0,0,-1,6,0,66,67,2,0,27,0,3,0,0,0,0,0,0,0,0,0};
+
+	private static final ThreadLocal<Deflater> deflater = new ThreadLocal<Deflater>() {
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		}
+	};
+	private static final ThreadLocal<Deflater> store = new ThreadLocal<Deflater>() {
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.NO_COMPRESSION, true);
+		}
+	};
+
+	private final OutputStream out;
+	private final ExecutorService pool;
+	private final int ahead;
+	private final ArrayDeque<Future<byte[]>> blocks = new ArrayDeque<>();
+	private byte[] block = new byte[BLOCK_SIZE];
+	private int pos = 0;
+
+	/**
+	 * @param out
+	 * @param pool threads to deflate blocks
+	 * @param ahead maximal number of blocks that wait to be written
+	 */
+	public BGZFOutputStream(OutputStream out,ExecutorService pool,int ahead) {
+		this.out = out;
+		this.pool = pool;
+		this.ahead = ahead;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if(pos == block.length)
+			submit();
+		block[pos++] = (byte)b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while(len > 0) {
+			if(pos == block.length)
+				submit();
+			int l = Math.min(len, block.length-pos);
+			System.arraycopy(b, off, block, pos, l);
+			pos += l;
+			off += l;
+			len -= l;
+		}
+	}
+
+	/**
+	 * deflates current (incomplete) block and writes all blocks
+	 */
+	@Override
+	public void flush() throws IOException {
+		if(pos > 0)
+			submit();
+		while(!blocks.isEmpty())
+			writeBlock();
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		flush();
+		out.write(EOF_BLOCK);
+		out.close();
+	}
+
+	private void submit() throws IOException {
+		final byte[] b = block;
+		final int len = pos;
+		blocks.add(pool.submit(new Callable<byte[]>() {
+			public byte[] call() {
+				return deflate(b, len);
+			}
+		}));
+		block = new byte[BLOCK_SIZE];
+		pos = 0;
+		while(blocks.size() > ahead)
+			writeBlock();
+	}
+
+	private void writeBlock() throws IOException {
+		try {
+			out.write(blocks.poll().get());
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+
+	private static byte[] deflate(byte[] b,int len) {
+		byte[] r = new byte[MAX_BLOCK_SIZE];
+		int l = deflate(deflater.get(), b, len, r);
+		//incompressible data
+		if(l == -1)
+			l = deflate(store.get(), b, len, r);
+		int bsize = HEADER_LENGTH+l+FOOTER_LENGTH;
+		byte[] h = {31,-117,8,4,0,0,0,0,0,-1,6,0,66,67,2,0,(byte)(bsize-1),(byte)((bsize-1) >> 8)};
+		System.arraycopy(h, 0, r, 0, h.length);
+		CRC32 crc = new CRC32();
+		crc.update(b, 0, len);
+		put32(r, HEADER_LENGTH+l, (int)crc.getValue());
+		put32(r, HEADER_LENGTH+l+4, len);
+		return Arrays.copyOf(r, bsize);
+	}
+
+	/**
+	 * @return length of deflated data (written after header) or -1 if it does not fit into block
+	 */
+	private static int deflate(Deflater d,byte[] b,int len,byte[] r) {
+		d.reset();
+		d.setInput(b, 0, len);
+		d.finish();
+		int l = d.deflate(r, HEADER_LENGTH, r.length-HEADER_LENGTH-FOOTER_LENGTH);
+		return d.finished()?l:-1;
+	}
+
+	private static void put32(byte[] b,int i,int v) {
+		for(int j=0;j<4;j++)
+			b[i+j] = (byte)(v >> (8*j));
+	}
+}
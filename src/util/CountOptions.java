@@ -0,0 +1,51 @@
+package util;
+
+/**
+ * Immutable snapshot of settings used to count reads. It is made once (settings are parsed and checked), 
+ * so per read code reads final fields instead of looking into Settings.
+ */
+public class CountOptions {
+	public final int stranded;
+	public final boolean paired;
+	public final boolean use_mult;
+	public final boolean use_singletons;
+	public final boolean count_only_border_reads;
+	public final boolean count_intron_reads;
+	public final boolean count_only_internal;
+	public final boolean use_reads_with_unknown_junctions;
+	public final boolean look_for_gene_for_unknown_junctions;
+	public final boolean only_junctions_from_same_gene;
+	public final int effective_read_length;
+	//null if all reads should be counted
+	public final String count_regions;
+	public final boolean out_gzip;
+	public final boolean out_sparse;
+	//null if count matrix should not be written
+	public final String out_matrix;
+	
+	public CountOptions(Settings s) {
+		stranded = s.getInt(Settings.STRANDED);
+		int p = s.getInt(Settings.PAIRED);
+		paired = p != 0;
+		use_mult = s.getBoolean(Settings.USE_MULT);
+		use_singletons = s.getBoolean(Settings.USE_SINGLETONS);
+		count_only_border_reads = s.getBoolean(Settings.COUNT_ONLY_BORDER_READS);
+		count_intron_reads = s.getBoolean(Settings.COUNT_INTRON_READS);
+		count_only_internal = s.getBoolean(Settings.COUNT_ONLY_INTERNAL);
+		use_reads_with_unknown_junctions = s.getBoolean(Settings.USE_READS_WITH_UNKNOWN_JUNCTIONS);
+		look_for_gene_for_unknown_junctions = s.getBoolean(Settings.LOOK_FOR_GENE_FOR_UNKNOWN_JUNCTIONS);
+		only_junctions_from_same_gene = s.getBoolean(Settings.ONLY_JUNCTIONS_FROM_SAME_GENE);
+		effective_read_length = s.getInt(Settings.EFFECTIVE_READ_LENGTH);
+		count_regions = s.getString(Settings.COUNT_REGIONS).equals("-")?null:s.getString(Settings.COUNT_REGIONS);
+		out_gzip = s.getBoolean(Settings.OUT_GZIP);
+		out_sparse = s.getBoolean(Settings.OUT_SPARSE);
+		out_matrix = s.getString(Settings.OUT_MATRIX).equals("-")?null:s.getString(Settings.OUT_MATRIX);
+		
+		if(stranded < -1 || stranded > 1)
+			Log.closeWithError("Wrong value for parameter "+Settings.STRANDED+" = "+stranded+". -1, 0 or 1 expected.", null);
+		if(p != 0 && p != 1)
+			Log.closeWithError("Wrong value for parameter "+Settings.PAIRED+" = "+p+". 0 or 1 expected.", null);
+		if(effective_read_length < 2)
+			Log.closeWithError("Wrong value for parameter "+Settings.EFFECTIVE_READ_LENGTH+" = "+effective_read_length+". It should be greater than 1.", null);
+	}
+}
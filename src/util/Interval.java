@@ -5,7 +5,8 @@ public class Interval implements Comparable<Interval>{
 	public final int stop;
 	public final int strand;
 	private String id= null;
-	protected double cov = 0;
+	//dense id among features of the same type, it is position of the feature in counter arrays (see util.bio.Counts)
+	private int inx = -1;
 	private boolean unstranded=false;
 	
 	public Interval(int start,int stop, int strand) {
@@ -19,12 +20,12 @@ public class Interval implements Comparable<Interval>{
 		this.id = id;
 	}
 	
-	public double getCov() {
-		return cov;
+	public int getInx() {
+		return inx;
 	}
 	
-	public void addCov() {
-		cov++;
+	public void setInx(int inx) {
+		this.inx = inx;
 	}
 	
 	public String getId(){
@@ -0,0 +1,139 @@
+package util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Journal of finished work (see journal setting), so restarted run could skip it.
+ * Each line is type of work, its id and values (tab-delimited). Line is written and synced to disk when the work is done and its results are written,
+ * so journal never refers to incomplete results. Last line without line end (writing was interrupted) is dropped.
+ * Fingerprint of settings is recorded as well, so work is not resumed with other settings (see checkSettings).
+ */
+public class Journal {
+	//type of entries with settings fingerprints, by type of work
+	private static final String SETTINGS = "settings";
+	//parameters that do not change results, they could be changed when run is resumed
+	private static final HashSet<String> FREE = new HashSet<>(Arrays.asList(Settings.THREADS,Settings.PROCESSES,Settings.PROCESS_MEMORY,
+			Settings.JOURNAL,Settings.DEBUG,Settings.VERBOSE,Settings.SUPPRESS_WARNINGS,Settings.STAT_BY_CHR));
+	private static Journal journal = null;
+
+	private final String file;
+	private final FileOutputStream out;
+	//values by type and id
+	private final HashMap<String, String[]> done = new HashMap<>();
+	//last entry of each type
+	private final HashMap<String, String[]> last = new HashMap<>();
+
+	private Journal(String file) throws IOException {
+		this.file = file;
+		File f = new File(file);
+		if(f.exists()) {
+			byte[] b = Files.readAllBytes(f.toPath());
+			int len = b.length;
+			while(len > 0 && b[len-1] != '\n')
+				len--;
+			for(String l : new String(b, 0, len, StandardCharsets.UTF_8).split("\n")) {
+				String[] t = l.split("\t");
+				if(t.length < 2)
+					continue;
+				String[] v = new String[t.length-2];
+				System.arraycopy(t, 2, v, 0, v.length);
+				done.put(t[0]+"\t"+t[1], v);
+				last.put(t[0], v);
+			}
+			if(len < b.length) {
+				RandomAccessFile r = new RandomAccessFile(f, "rw");
+				r.setLength(len);
+				r.close();
+			}
+			int n = 0;
+			for(String k : done.keySet())
+				if(!k.startsWith(SETTINGS+"\t"))
+					n++;
+			if(n > 0)
+				Log.println("Journal '"+file+"' has "+n+" finished entries, they will be skipped");
+		}
+		out = new FileOutputStream(f, true);
+	}
+
+	/**
+	 * @return journal of current run, null if journal is not used
+	 */
+	public static synchronized Journal get() {
+		String f = Settings.S().getString(Settings.JOURNAL);
+		if(f.equals("-"))
+			return null;
+		if(journal == null) {
+			try {
+				journal = new Journal(f);
+			}catch(IOException e) {
+				Log.closeWithError("Cannot open journal '"+f+"': "+e.getMessage(), e);
+			}
+		}
+		return journal;
+	}
+
+	/**
+	 * @param type
+	 * @param id
+	 * @return values recorded for finished work, null if it was not finished
+	 */
+	public synchronized String[] get(String type,String id) {
+		return done.get(type+"\t"+id);
+	}
+
+	/**
+	 * @param type
+	 * @return values of the last finished work of given type, null if there is no such work
+	 */
+	public synchronized String[] last(String type) {
+		return last.get(type);
+	}
+
+	/**
+	 * Records fingerprint of settings (see Settings.getFingerprint) for work of given type, if it is not recorded yet.
+	 * Otherwise run is stopped if settings are changed, since finished work would not be the same as new one.
+	 * @param type
+	 * @param groups groups of parameters that work depends on
+	 * @param ignore parameters that identify work (as input of sample), they are not checked as well as parameters that do not change results
+	 */
+	public synchronized void checkSettings(String type,String[] groups,String... ignore) {
+		HashSet<String> i = new HashSet<>(FREE);
+		i.addAll(Arrays.asList(ignore));
+		String f = Settings.S().getFingerprint(new HashSet<>(Arrays.asList(groups)), i);
+		String[] v = get(SETTINGS, type);
+		if(v == null)
+			done(SETTINGS, type, f);
+		else if(v.length == 0 || !v[0].equals(f))
+			Log.closeWithError("Journal '"+file+"' was written by "+type+" with other settings, finished work cannot be reused. " +
+					"Restore the settings or remove the journal.", null);
+	}
+
+	/**
+	 * records finished work, it should be called after results are written
+	 * @param type
+	 * @param id
+	 * @param values
+	 */
+	public synchronized void done(String type,String id,String... values) {
+		StringBuilder l = new StringBuilder(type).append('\t').append(id);
+		for(String v : values)
+			l.append('\t').append(v);
+		l.append('\n');
+		try {
+			out.write(l.toString().getBytes(StandardCharsets.UTF_8));
+			out.getFD().sync();
+		}catch(IOException e) {
+			Log.closeWithError("Cannot write journal '"+file+"': "+e.getMessage(), e);
+		}
+		done.put(type+"\t"+id, values);
+		last.put(type, values);
+	}
+}
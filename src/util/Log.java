@@ -1,33 +1,18 @@
 package util;
 
 import java.io.PrintStream;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
-import java.util.HashMap;
 
 public class Log {
 	static PrintStream out = System.out;
 	static PrintStream err = System.err;
 	
-	static HashMap<String, Integer> stat = new HashMap<String, Integer>();
-	//annotator stat
-	static public final String BAD_JUNCTIONS_CNT = "#bad junctions";
-	//read_counter stat
-	static public final String JUNCTIONS_CNT = "#junctions";
-	static public final String TOTAL_READS = "#total records";
-	static public final String MULTI_READS = "#multiple reads records";
-	static public final String USED_READS = "#used records";
-	static public final String UNKNOWN_JUNCTION = "#unknown junction";
-	static public final String UNKNOWN_JUNCTION_COMB = "#unknown junction combination";
-	static public final String GENE_READS = "#gene records";
-	static public final String EXON_READS = "#exon records";
-	//static public final String UNKNOWN_CHR = "#unknown chr";
-	static public final String PAIRED = "#paired records";
-	static public final String SINGLETONS = "#singletons records";
-	static public final String UNMAPPED = "#unmapped reads";
-	static public final String NEW_JUNCTIONS_FOUND = "#new junctions found";
+	//each thread collects its own statistics, workers hand them over to main thread by takeStat/mergeStat
+	static ThreadLocal<Stats> stat = new ThreadLocal<Stats>() {
+		protected Stats initialValue() {
+			return new Stats(Settings.S().getBoolean(Settings.STAT_BY_CHR));
+		}
+	};
 	
 	static public final long START_TIME = System.currentTimeMillis();
 	
@@ -65,29 +50,67 @@ public class Log {
 		System.exit(0);
 	}
 	
-	public static void addStat(String name,int add) {
-		Integer i = stat.get(name);
-		if( i == null) 
-			i = 0;
-		stat.put(name, i+add);	
+	public static void addStat(Stat s,int add) {
+		stat.get().add(s, add);
+	}
+	
+	/**
+	 * sets chromosome following statistics of current thread will be attributed to (if stat_by_chr is on)
+	 * @param chr
+	 */
+	public static void statChr(String chr) {
+		stat.get().setChr(chr);
 	}
 	
 	public static void cleanStat() {
-		stat = new HashMap<String, Integer>();
+		stat.remove();
+	}
+	
+	/**
+	 * @return statistics collected by current thread. Statistics of the thread is cleaned.
+	 */
+	public static Stats takeStat() {
+		Stats r = stat.get();
+		stat.remove();
+		return r;
+	}
+	
+	/**
+	 * replaces statistics of current thread. Allows one thread to collect statistics of several samples.
+	 * @param s
+	 * @return previous statistics of current thread
+	 */
+	public static Stats setStat(Stats s) {
+		Stats r = stat.get();
+		stat.set(s);
+		return r;
+	}
+	
+	/**
+	 * adds statistics (collected by another thread) to statistics of current thread
+	 * @param s
+	 */
+	public static void mergeStat(Stats s) {
+		stat.get().merge(s);
 	}
 	
 	public static void printStat() {
-		println("Statistics:");
+		printStat(null);
+	}
+	
+	/**
+	 * prints statistics of current thread
+	 * @param name name of statistics (sample for example), could be null
+	 */
+	public static synchronized void printStat(String name) {
+		println("Statistics"+(name == null?"":" for "+name)+":");
 		if(Settings.S().getBoolean(Settings.VERBOSE)) {
-			ArrayList<String> ks = new ArrayList<>(stat.keySet());
-			Collections.sort(ks,new Comparator<String>() {
-
-				public int compare(String o1, String o2) {
-					return stat.get(o2) - stat.get(o1);
-				}
-			});
-			for(String k : ks)
-				System.out.println(k+" = "+stat.get(k));
+			Stats stat = Log.stat.get();
+			for(Stat s : stat.getUsed())
+				System.out.println(s.label+" = "+stat.get(s));
+			String t = stat.chrTable();
+			if(t != null)
+				System.out.println(t);
 		}
 	}
 }
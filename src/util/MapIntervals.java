@@ -0,0 +1,51 @@
+package util;
+
+import java.util.Arrays;
+
+import htsjdk.samtools.Cigar;
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
+import htsjdk.samtools.SAMRecord;
+
+/**
+ * Reusable buffer for mapped blocks of reads: start1,stop1,start2,stop2... (inclusive).
+ * Only first length values are meaningful, data grows if needed.
+ */
+public class MapIntervals {
+	public int[] data = new int[16];
+	public int length = 0;
+	
+	/**
+	 * Walks cigar of the read, neighbor blocks (separated by insertion for example) are joined.
+	 * @param r
+	 * @return number of values (two per block)
+	 */
+	public int decode(SAMRecord r) {
+		length = 0;
+		int start = r.getAlignmentStart();
+		Cigar cigar = r.getCigar();
+		for(int i=0;i<cigar.numCigarElements();i++) {
+			CigarElement c = cigar.getCigarElement(i);
+			CigarOperator o = c.getOperator();
+			if(o.consumesReferenceBases()) {
+				if(o != CigarOperator.N) {
+					int stop = start+c.getLength()-1;
+					if(length > 0 && start <= data[length-1]+1)
+						data[length-1] = Math.max(data[length-1], stop);
+					else {
+						if(length == data.length)
+							data = Arrays.copyOf(data, length*2);
+						data[length++] = start;
+						data[length++] = stop;
+					}
+				}
+				start += c.getLength();
+			}
+		}
+		return length;
+	}
+	
+	public int[] toArray() {
+		return Arrays.copyOf(data, length);
+	}
+}
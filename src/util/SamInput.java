@@ -0,0 +1,225 @@
+package util;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFormatException;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SAMTextHeaderCodec;
+import htsjdk.samtools.SAMUtils;
+import htsjdk.samtools.SAMValidationError;
+import htsjdk.samtools.SamInputResource;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.util.StringLineReader;
+
+/**
+ * Sequential reading of SAM/BAM file. If more than one thread is allowed, BAM blocks are inflated in parallel
+ * (see BGZFInputStream) and records are decoded from inflated data, otherwise (or for SAM files) htsjdk SamReader is used.
+ * Records are not validated by next(), they should be validated by validate(...) (or read by next(Iterator)),
+ * so invalid records are the same whatever number of threads is used and validation could be done by other threads.
+ * All instances share one inflating thread pool.
+ */
+public class SamInput implements Iterator<SAMRecord>, Closeable {
+	private static final byte[] BAM_MAGIC = {'B','A','M',1};
+	private static ExecutorService pool = null;
+	private static int pool_size = 0;
+	
+	private final String file;
+	private SamReader reader;
+	private Iterator<SAMRecord> it;
+	
+	private InputStream bam;
+	private BAMRecordCodec codec;
+	private SAMFileHeader header;
+	private static final ValidationStringency STRINGENCY = ValidationStringency.DEFAULT_STRINGENCY;
+	private SAMRecord next;
+	private long index = 0;
+	
+	public SamInput(String file,int threads) throws IOException {
+		this.file = file;
+		BufferedInputStream in = new BufferedInputStream(new FileInputStream(file),10000000);
+		if(threads > 1 && BGZFInputStream.isBGZF(in)) {
+			bam = new BufferedInputStream(new BGZFInputStream(in, getPool(threads), threads*4),1000000);
+			if(isBAM(bam)) {
+				readHeader();
+				codec = new BAMRecordCodec(header);
+				codec.setInputStream(bam, file);
+				advance();
+				return;
+			}
+			//bgzipped sam
+			bam.close();
+			bam = null;
+			in = new BufferedInputStream(new FileInputStream(file),10000000);
+		}
+		reader = factory().open(SamInputResource.of(in));
+		header = reader.getFileHeader();
+		it = reader.iterator();
+	}
+	
+	/**
+	 * htsjdk validates record while it advances to the record, so invalid record breaks hasNext() or next() of previous record.
+	 * Records are validated by validate(...) instead.
+	 */
+	private static SamReaderFactory factory() {
+		return SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT);
+	}
+	
+	/**
+	 * Opens file for index queries, records of the queries should be read by next(Iterator)
+	 */
+	public static SamReader open(File f) {
+		return factory().open(f);
+	}
+	
+	/**
+	 * @param it SamInput or records of SamReader opened by open(File)
+	 * @return next valid record, null if there are no more records. Invalid records are skipped with warning (see Log.throwUncrucialExc)
+	 */
+	public static SAMRecord next(Iterator<SAMRecord> it) {
+		while(it.hasNext()) {
+			SAMRecord r = it.next();
+			try{
+				//record number is unknown for queries, it is known only for sequential reading
+				validate(r, it instanceof SamInput?((SamInput)it).index:0);
+				return r;
+			}catch(SAMFormatException e){
+				Log.throwUncrucialExc("Something wrong with read SAM format: "+e.getMessage()+".\n"
+						+ "The read was skipped.");
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * @param r
+	 * @param index number of record in file (used in message), 0 if unknown
+	 * @throws htsjdk.samtools.SAMFormatException if record is not valid
+	 */
+	public static void validate(SAMRecord r,long index) {
+		r.setValidationStringency(STRINGENCY);
+		if(STRINGENCY != ValidationStringency.SILENT) {
+			List<SAMValidationError> errs = r.isValid(STRINGENCY == ValidationStringency.STRICT);
+			SAMUtils.processValidationErrors(errs, index, STRINGENCY);
+		}
+	}
+	
+	private static synchronized ExecutorService getPool(int threads) {
+		if(pool_size < threads) {
+			if(pool != null)
+				pool.shutdown();
+			pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "bgzf");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			pool_size = threads;
+		}
+		return pool;
+	}
+	
+	private static boolean isBAM(InputStream in) throws IOException {
+		byte[] m = new byte[BAM_MAGIC.length];
+		in.mark(m.length);
+		int l = in.read(m);
+		in.reset();
+		if(l != m.length)
+			return false;
+		for(int i=0;i<m.length;i++)
+			if(m[i] != BAM_MAGIC[i])
+				return false;
+		return true;
+	}
+	
+	/**
+	 * Reads header in the same way as htsjdk does: text header is used, references from binary header are used only if text header has no @SQ lines.
+	 * @throws IOException
+	 */
+	private void readHeader() throws IOException {
+		DataInputStream in = new DataInputStream(bam);
+		in.skipBytes(BAM_MAGIC.length);
+		byte[] text = new byte[readInt(in)];
+		in.readFully(text);
+		int n = readInt(in);
+		List<SAMSequenceRecord> seqs = new ArrayList<>(n);
+		for(int i=0;i<n;i++) {
+			byte[] name = new byte[readInt(in)];
+			in.readFully(name);
+			seqs.add(new SAMSequenceRecord(new String(name, 0, name.length-1, "US-ASCII"), readInt(in)));
+		}
+		int l = text.length;
+		while(l > 0 && text[l-1] == 0)
+			l--;
+		SAMTextHeaderCodec hc = new SAMTextHeaderCodec();
+		hc.setValidationStringency(STRINGENCY);
+		header = hc.decode(new StringLineReader(new String(text, 0, l, "US-ASCII")), file);
+		if(header.getSequenceDictionary().size() == 0)
+			header.setSequenceDictionary(new SAMSequenceDictionary(seqs));
+	}
+	
+	private static int readInt(DataInputStream in) throws IOException {
+		return Integer.reverseBytes(in.readInt());
+	}
+	
+	private void advance() {
+		next = codec.decode();
+	}
+	
+	public SAMFileHeader getFileHeader() {
+		return header;
+	}
+	
+	@Override
+	public boolean hasNext() {
+		if(it != null)
+			return it.hasNext();
+		return next != null;
+	}
+	
+	/**
+	 * @return next record (not validated, see validate) or null if there are no more records (as htsjdk bam iterator does)
+	 */
+	@Override
+	public SAMRecord next() {
+		SAMRecord r;
+		if(it != null) {
+			r = it.next();
+			if(r == null)
+				return null;
+		}else {
+			r = next;
+			if(r == null)
+				return null;
+			advance();
+		}
+		index++;
+		return r;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if(reader != null)
+			reader.close();
+		if(bam != null)
+			bam.close();
+	}
+}
@@ -5,12 +5,17 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
+import java.util.zip.CRC32C;
 
 public class Settings {
 	private HashMap<String, Object> params;
+	//values as they are given, params keep parsed values
+	private HashMap<String, String> texts;
 	private ArrayList<String> param_names;
 	private HashMap<String,String> param_group;
 	private String del = ": ";
@@ -28,20 +33,35 @@ public class Settings {
 	public static final String JUNC_OVERHANG = "junc_overhang";
 	public static final String INDEP_POS = "indep_pos";
 	public static final String EXCEPTION2WARN = "exception2warn";
+	public static final String THREADS = "threads";
+	public static final String PROCESSES = "processes";
+	public static final String PROCESS_MEMORY = "process_memory";
+	public static final String SHARD = "shard";
+	public static final String JOURNAL = "journal";
 	public static final String ANN_OUT = "ann_out";
 	public static final String PAIRED = "paired";
 	public static final String ANN_IN = "ann_in";
+	public static final String ANN_COMPILED = "ann_compiled";
+	public static final String ANN_COMPILED_VERIFY = "ann_compiled_verify";
+	public static final String ANN_GROUPED = "ann_grouped";
 	public static final String COUNT_ONLY_BORDER_READS = "count_only_border_reads";
 	public static final String COUNT_INTRON_READS = "count_intron_reads";
 	public static final String VERBOSE = "verbose";
 	public static final String SUPPRESS_WARNINGS = "suppress_warnings";
+	public static final String STAT_BY_CHR = "stat_by_chr";
+	public static final String COUNT_REGIONS = "count_regions";
 	public static final String OUT_BASE = "out_base";
+	public static final String OUT_GZIP = "out_gzip";
+	public static final String OUT_SPARSE = "out_sparse";
+	public static final String OUT_MATRIX = "out_matrix";
 	public static final String COUNT_ONLY_INTERNAL = "count_only_internal";
 	public static final String EFFECTIVE_READ_LENGTH = "effective_read_length";
 	public static final String USE_READS_WITH_UNKNOWN_JUNCTIONS = "use_reads_with_unknown_junctions";
 	public static final String ONLY_JUNCTIONS_FROM_SAME_GENE = "only_junctions_from_same_gene";
 	public static final String BATCH_IN = "batch_in";
 	public static final String BATCH_OUT = "batch_out";
+	public static final String BATCH_THREADS = "batch_threads";
+	public static final String BATCH_MERGE = "batch_merge";
 	public static final String DEBUG = "debug";
 	public static final String ANN_FOREIGN = "ann_foreign";
 	public static final String GENE_BLACK_LIST  = "gene_black_list";
@@ -70,6 +90,7 @@ public class Settings {
 	
 	private Settings() throws IOException{
 		params = new HashMap<String, Object>();
+		texts = new HashMap<String, String>();
 		param_names = new ArrayList<String>();
 		if(!(new File(fname)).exists()) {
 			throw new RuntimeException("Settings file '"+fname+"' doesn't exist!");
@@ -94,6 +115,7 @@ public class Settings {
 				l = l.substring(0,l.indexOf(';'));
 				String[] t = l.split(del);
 				params.put(t[0], t[1]);
+				texts.put(t[0], t[1]);
 				param_names.add(t[0]);
 				param_group.put(t[0],Util.join(cgroup,"."));
 			}catch(Exception e) {
@@ -182,11 +204,35 @@ public class Settings {
 		Object oldv = params.put(name, v);
 		if(oldv == null)
 			Log.closeWithError("Attempt to set parameter with unrecognized name: "+name+".", new RuntimeException());
+		texts.put(name, v);
+	}
+	
+	/**
+	 * @param groups
+	 * @param ignore parameters that are not included
+	 * @return checksum of values of parameters of given groups (as they are given, so parsing does not change it)
+	 */
+	public String getFingerprint(HashSet<String> groups,HashSet<String> ignore) {
+		CRC32C crc = new CRC32C();
+		for(String k : param_names)
+			if(groups.contains(getParamGroup(k)) && !ignore.contains(k))
+				crc.update((k+": "+texts.get(k)+"\n").getBytes(StandardCharsets.UTF_8));
+		return Long.toHexString(crc.getValue());
 	}
 	
 	public void printSettings(String pref,HashSet<String> groups,PrintStream o) {
+		printSettings(pref, groups, o, null);
+	}
+	
+	/**
+	 * @param pref
+	 * @param groups
+	 * @param o
+	 * @param values values to print instead of current ones (for example input file of one of batch samples), could be null
+	 */
+	public void printSettings(String pref,HashSet<String> groups,PrintStream o,Map<String,String> values) {
 		for(String k : param_names)
 			if(groups.contains(getParamGroup(k)))
-				o.println(pref+k+": "+params.get(k));
+				o.println(pref+k+": "+(values != null && values.containsKey(k)?values.get(k):params.get(k)));
 	}
 }
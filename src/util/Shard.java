@@ -0,0 +1,72 @@
+package util;
+
+import java.util.HashMap;
+import java.util.List;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+
+/**
+ * Part of chromosomes processed by one worker process (see processes).
+ * Reference sequences of bam header are split into n contiguous groups of about the same total length,
+ * chromosomes that are absent in header belong to the last shard.
+ * So outputs of shards written in shard order keep the order of chromosomes.
+ */
+public class Shard {
+	public final int k;
+	public final int n;
+	private final HashMap<String, Integer> chr2shard = new HashMap<>();
+
+	/**
+	 * @param k
+	 * @param n
+	 * @param dict reference sequences of input
+	 */
+	public Shard(int k,int n,SAMSequenceDictionary dict) {
+		this.k = k;
+		this.n = n;
+		List<SAMSequenceRecord> seqs = dict.getSequences();
+		long total = 0;
+		for(SAMSequenceRecord s : seqs)
+			total += s.getSequenceLength();
+		long cum = 0;
+		for(SAMSequenceRecord s : seqs) {
+			//shard of the middle of chromosome
+			chr2shard.put(s.getSequenceName(), total == 0?0:(int)Math.min(n-1, (cum+s.getSequenceLength()/2)*n/total));
+			cum += s.getSequenceLength();
+		}
+	}
+
+	/**
+	 * @param dict
+	 * @return shard of current process (shard setting), null if all chromosomes should be processed
+	 */
+	public static Shard get(SAMSequenceDictionary dict) {
+		String s = Settings.S().getString(Settings.SHARD);
+		if(s.equals("-"))
+			return null;
+		String[] t = s.split("/");
+		try {
+			int k = Integer.parseInt(t[0]);
+			int n = Integer.parseInt(t[1]);
+			if(k >= 0 && k < n)
+				return new Shard(k, n, dict);
+		}catch(NumberFormatException | ArrayIndexOutOfBoundsException e) {
+		}
+		Log.closeWithError("Wrong value for parameter "+Settings.SHARD+" = "+s+". 'k/n' (0 <= k < n) or '-' expected.", null);
+		return null;
+	}
+
+	public int getShard(String chr) {
+		Integer s = chr2shard.get(chr);
+		return s == null?n-1:s;
+	}
+
+	public boolean contains(String chr) {
+		return getShard(chr) == k;
+	}
+
+	public boolean isLast() {
+		return k == n-1;
+	}
+}
@@ -0,0 +1,40 @@
+package util;
+
+/**
+ * Statistics counters, see Log.addStat
+ */
+public enum Stat {
+	//annotator stat
+	BAD_JUNCTIONS_CNT("#bad junctions"),
+	//read_counter stat
+	JUNCTIONS_CNT("#junctions"),
+	TOTAL_READS("#total records"),
+	MULTI_READS("#multiple reads records"),
+	USED_READS("#used records"),
+	UNKNOWN_JUNCTION("#unknown junction"),
+	UNKNOWN_JUNCTION_COMB("#unknown junction combination"),
+	GENE_READS("#gene records"),
+	EXON_READS("#exon records"),
+	PAIRED("#paired records"),
+	SINGLETONS("#singletons records"),
+	UNMAPPED("#unmapped reads"),
+	NEW_JUNCTIONS_FOUND("#new junctions found");
+	
+	public final String label;
+	static final Stat[] ALL = values();
+	
+	private Stat(String label) {
+		this.label = label;
+	}
+	
+	/**
+	 * @param label
+	 * @return counter with given label or null
+	 */
+	public static Stat byLabel(String label) {
+		for(Stat s : ALL)
+			if(s.label.equals(label))
+				return s;
+		return null;
+	}
+}
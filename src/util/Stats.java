@@ -0,0 +1,156 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Values of statistics counters collected by one thread (for one sample), optionally by chromosomes.
+ * Statistics of different threads are summed by merge.
+ */
+public class Stats {
+	private final long[] v = new long[Stat.ALL.length];
+	//counters that were touched, only they are printed
+	private final boolean[] used = new boolean[Stat.ALL.length];
+	//null if statistics by chromosomes is not collected
+	private final HashMap<String, long[]> by_chr;
+	private String chr = null;
+	private long[] chr_v = null;
+	
+	public Stats(boolean by_chr) {
+		this.by_chr = by_chr?new HashMap<String, long[]>():null;
+	}
+	
+	public void add(Stat s,long add) {
+		v[s.ordinal()] += add;
+		used[s.ordinal()] = true;
+		if(chr_v != null)
+			chr_v[s.ordinal()] += add;
+	}
+	
+	public long get(Stat s) {
+		return v[s.ordinal()];
+	}
+	
+	/**
+	 * sets chromosome the next values will be attributed to
+	 * @param chr
+	 */
+	public void setChr(String chr) {
+		if(by_chr == null || chr == this.chr)
+			return;
+		this.chr = chr;
+		chr_v = by_chr.get(chr);
+		if(chr_v == null) {
+			chr_v = new long[Stat.ALL.length];
+			by_chr.put(chr, chr_v);
+		}
+	}
+	
+	public void merge(Stats s) {
+		for(int i=0;i<v.length;i++) {
+			v[i] += s.v[i];
+			used[i] |= s.used[i];
+		}
+		if(by_chr != null && s.by_chr != null)
+			for(String c : s.by_chr.keySet()) {
+				long[] t = by_chr.get(c);
+				if(t == null) {
+					t = new long[Stat.ALL.length];
+					by_chr.put(c, t);
+				}
+				long[] f = s.by_chr.get(c);
+				for(int i=0;i<t.length;i++)
+					t[i] += f[i];
+			}
+	}
+	
+	/**
+	 * @return used counters, in decreasing order of values
+	 */
+	List<Stat> getUsed() {
+		ArrayList<Stat> r = new ArrayList<>();
+		for(Stat s : Stat.ALL)
+			if(used[s.ordinal()])
+				r.add(s);
+		Collections.sort(r,new Comparator<Stat>() {
+			public int compare(Stat o1, Stat o2) {
+				return Long.compare(v[o2.ordinal()], v[o1.ordinal()]);
+			}
+		});
+		return r;
+	}
+	
+	/**
+	 * @return tab-delimited table of used counters by chromosomes, or null if they were not collected
+	 */
+	String chrTable() {
+		if(by_chr == null)
+			return null;
+		List<Stat> ss = getUsed();
+		StringBuilder r = new StringBuilder("chr");
+		for(Stat s : ss)
+			r.append('\t').append(s.label);
+		ArrayList<String> chrs = new ArrayList<>(by_chr.keySet());
+		Collections.sort(chrs);
+		for(String c : chrs) {
+			r.append('\n').append(c);
+			for(Stat s : ss)
+				r.append('\t').append(by_chr.get(c)[s.ordinal()]);
+		}
+		return r.toString();
+	}
+	
+	/**
+	 * adds statistics printed by Log.printStat (by another process for example)
+	 * @param lines
+	 * @param from first line after 'Statistics' line
+	 * @return index of the first line that is not a part of printed statistics
+	 */
+	public int addPrinted(List<String> lines,int from) {
+		int i = from;
+		for(;i<lines.size();i++) {
+			String l = lines.get(i);
+			int d = l.lastIndexOf(" = ");
+			Stat s = d == -1?null:Stat.byLabel(l.substring(0, d));
+			if(s == null)
+				break;
+			try {
+				add(s, Long.parseLong(l.substring(d+3)));
+			}catch(NumberFormatException e) {
+				break;
+			}
+		}
+		if(i == lines.size() || !lines.get(i).startsWith("chr\t"))
+			return i;
+		String[] h = lines.get(i).split("\t");
+		Stat[] ss = new Stat[h.length];
+		for(int j=1;j<h.length;j++)
+			ss[j] = Stat.byLabel(h[j]);
+		for(i++;i<lines.size();i++) {
+			String[] t = lines.get(i).split("\t");
+			if(t.length != h.length)
+				break;
+			try {
+				long[] c = new long[t.length];
+				for(int j=1;j<t.length;j++)
+					c[j] = Long.parseLong(t[j]);
+				if(by_chr == null)
+					continue;
+				long[] r = by_chr.get(t[0]);
+				if(r == null) {
+					r = new long[Stat.ALL.length];
+					by_chr.put(t[0], r);
+				}
+				for(int j=1;j<t.length;j++)
+					if(ss[j] != null)
+						r[ss[j].ordinal()] += c[j];
+			}catch(NumberFormatException e) {
+				break;
+			}
+		}
+		return i;
+	}
+}
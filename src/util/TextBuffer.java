@@ -0,0 +1,118 @@
+package util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer to format text output. Strings (ASCII), chars and integers are written directly into the buffer,
+ * so formatting of line does not allocate. Text is the same as produced by PrintStream.
+ */
+public class TextBuffer {
+	private static final byte[] NL = System.lineSeparator().getBytes();
+	private static final Charset CHARSET = Charset.defaultCharset();
+	private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes();
+
+	private byte[] buf;
+	private int size = 0;
+
+	public TextBuffer() {
+		this(1<<16);
+	}
+
+	public TextBuffer(int capacity) {
+		buf = new byte[capacity];
+	}
+
+	public TextBuffer add(String s) {
+		int l = s.length();
+		ensure(l);
+		for(int i=0;i<l;i++) {
+			char c = s.charAt(i);
+			if(c >= 0x80)
+				return add(s.substring(i).getBytes(CHARSET));
+			buf[size++] = (byte)c;
+		}
+		return this;
+	}
+
+	public TextBuffer add(char c) {
+		if(c >= 0x80)
+			return add(String.valueOf(c));
+		ensure(1);
+		buf[size++] = (byte)c;
+		return this;
+	}
+
+	public TextBuffer add(long v) {
+		if(v == Long.MIN_VALUE)
+			return add(MIN_LONG);
+		ensure(20);
+		if(v < 0) {
+			buf[size++] = '-';
+			v = -v;
+		}
+		int from = size;
+		do {
+			buf[size++] = (byte)('0'+v%10);
+			v /= 10;
+		}while(v != 0);
+		//digits are written in reverse order
+		for(int i=from,j=size-1;i<j;i++,j--) {
+			byte t = buf[i];
+			buf[i] = buf[j];
+			buf[j] = t;
+		}
+		return this;
+	}
+
+	/**
+	 * the same text as Double.toString, frequent values (NaN and integers) are formatted without allocation
+	 * @param v
+	 * @return
+	 */
+	public TextBuffer add(double v) {
+		if(Double.isNaN(v))
+			return add("NaN");
+		if(v == (long)v && Math.abs(v) < 1e7 && (v != 0 || 1/v > 0))
+			return add((long)v).add(".0");
+		return add(Double.toString(v));
+	}
+
+	public TextBuffer add(byte[] b) {
+		ensure(b.length);
+		System.arraycopy(b, 0, buf, size, b.length);
+		size += b.length;
+		return this;
+	}
+
+	/**
+	 * adds line separator
+	 * @return
+	 */
+	public TextBuffer nl() {
+		return add(NL);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	public byte[] toByteArray() {
+		return Arrays.copyOf(buf, size);
+	}
+
+	public void writeTo(OutputStream o) throws IOException {
+		o.write(buf, 0, size);
+	}
+
+	private void ensure(int n) {
+		if(size+n > buf.length)
+			buf = Arrays.copyOf(buf, Math.max(buf.length*2, size+n));
+	}
+}
@@ -6,12 +6,14 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.ListIterator;
 import java.util.Set;
 
-import htsjdk.samtools.CigarElement;
-import htsjdk.samtools.CigarOperator;
 import htsjdk.samtools.SAMRecord;
 
 
@@ -129,24 +131,9 @@ public class Util {
 	}
 	
 	public static int[] getMapIntervals(SAMRecord r) {
-		ArrayList<int[]> res = new ArrayList<int[]>();
-		int start = r.getAlignmentStart();
-		for(CigarElement c : r.getCigar().getCigarElements()) {
-			if(c.getOperator().consumesReferenceBases()) {
-				if(!c.getOperator().equals(CigarOperator.N))
-					res.add(new int[] {start,start+c.getLength()-1});
-				start += c.getLength();
-			}
-		}
-		
-		//join neighbor blocks
-		res = union(res);
-		int[] fr = new int[res.size()*2];
-		for(int i=0;i<res.size();i++) {
-			fr[i*2] = res.get(i)[0];
-			fr[i*2+1] = res.get(i)[1];
-		}
-		return fr;
+		MapIntervals b = new MapIntervals();
+		b.decode(r);
+		return b.toArray();
 	}
 	
 	public static <E> HashSet<E> intersect(Collection<E> a,Iterable<E> b){
@@ -208,6 +195,28 @@ public class Util {
 		return r.substring(0, r.length()-1).toString();
 	}
 	
+	/**
+	 * Stable sort as Collections.sort. If threads is more than 1 list is sorted by Arrays.parallelSort (by common fork-join pool),
+	 * so comparator should be safe to call from different threads.
+	 * @param l
+	 * @param c
+	 * @param threads
+	 */
+	@SuppressWarnings("unchecked")
+	public static <E> void sort(List<E> l,Comparator<? super E> c,int threads) {
+		if(threads < 2) {
+			Collections.sort(l, c);
+			return;
+		}
+		E[] a = (E[])l.toArray();
+		Arrays.parallelSort(a, c);
+		ListIterator<E> i = l.listIterator();
+		for(E e : a) {
+			i.next();
+			i.set(e);
+		}
+	}
+	
 	public static void main(String[] args) {
 //		System.out.println(Util.join(parseIntSequence("1,2,10"),","));
 //		System.out.println(Util.join(parseIntSequence("1:10"),","));
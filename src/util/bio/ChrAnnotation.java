@@ -1,12 +1,14 @@
 package util.bio;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.List;
 
+import util.CountOptions;
 import util.Log;
 import util.Settings;
 import util.Util;
@@ -14,15 +16,52 @@ import util.Util;
 public class ChrAnnotation {
 	int max_gene_length=0;
 	ArrayList<Gene> genes;
-	HashMap<Intron,List<Gene>> intron2genes;
 	HashMap<Integer,HashSet<Gene>> leftSS2genes;
 	HashMap<Integer,HashSet<Gene>> rightSS2genes;
-	HashMap<Intron,Intron> introns;
+	//each intron keeps genes it belongs to (see Intron.genes)
+	IntronIndex introns;
 	String chr_id;
+	final CountOptions opt;
+	final FeatureIds ids;
+	//junctions of current read (or pair) and genes compatible with them, reused for all reads. 
+	//So reads of annotation could be counted only by one thread at a time (anyway new junctions are added into annotation)
+	private Intron[] read_ints = new Intron[8];
+	private int read_ints_cnt = 0;
+	//not annotated introns of the read (including ones of dropped strand), they are marked as found by sample in Resolution.count
+	private Intron[] read_found = new Intron[8];
+	private int read_found_cnt = 0;
+	private Gene[] read_genes = new Gene[8];
+	private Gene[] read_genes_tmp = new Gene[8];
+	private int read_genes_cnt = 0;
+	//new introns linked to genes, not null for view: genes are shared with annotation the view was made from (see view), so new introns are not added into them
+	private HashMap<Gene,ArrayList<Intron>> gene2found = null;
+	//resolutions of recently counted reads
+	private final ReadCache cache = new ReadCache();
+	//windows of genes at position of the last read, for positive and negative strands
+	private GeneSweep sweep_pos = null;
+	private GeneSweep sweep_neg = null;
+	
+	private static final Gene[] NO_GENES = new Gene[0];
+	private static final Comparator<Gene> BY_INX = new Comparator<Gene>() {
+		public int compare(Gene o1, Gene o2) {
+			return Integer.compare(o1.getInx(), o2.getInx());
+		}
+	};
 
 	public ChrAnnotation(String chr_id) {
+		this(chr_id, new CountOptions(Settings.S()), new FeatureIds());
+	}
+	
+	/**
+	 * @param chr_id
+	 * @param opt
+	 * @param ids gives ids to features of the chromosome, should be shared by all chromosomes which reads are counted into the same Counts
+	 */
+	public ChrAnnotation(String chr_id,CountOptions opt,FeatureIds ids) {
 		genes = new ArrayList<>();
 		this.chr_id = chr_id;
+		this.opt = opt;
+		this.ids = ids;
 	}
 	
 	@SuppressWarnings("unchecked")
@@ -31,7 +70,19 @@ public class ChrAnnotation {
 	}
 	
 	public  ArrayList<Intron> getIntrons(){
-		return new ArrayList<>(introns.keySet());
+		return introns.values();
+	}
+	
+	/**
+	 * @param col sample
+	 * @return introns from annotation and new introns that were found in reads of the sample
+	 */
+	public  ArrayList<Intron> getIntrons(int col){
+		ArrayList<Intron> r = new ArrayList<>(introns.size());
+		for(Intron i : introns.values())
+			if(i.found_by == null || i.found_by.get(col))
+				r.add(i);
+		return r;
 	}
 
 	/**
@@ -41,126 +92,347 @@ public class ChrAnnotation {
 	public void addGene(Gene g){
 		genes.add(g);
 		max_gene_length = Math.max(max_gene_length, g.length());
+		sweep_pos = null;
+		sweep_neg = null;
 	}
 	
 	/**
 	 * the method should be called when all genes from the chromosome were loaded
-	 * sorts genes, introns and segments within genes and makes introns to gene hash. 
+	 * sorts genes, introns and segments within genes, gives ids to genes and segments and makes introns to gene hash. 
 	 */
 	public void loaded(){
 		Collections.sort(genes);
-		intron2genes = new HashMap<>();
-		introns = new HashMap<>();
-		if(Settings.S().getBoolean(Settings.LOOK_FOR_GENE_FOR_UNKNOWN_JUNCTIONS)) {
-			leftSS2genes = new HashMap<>();
-			rightSS2genes = new HashMap<>();
+		for(Gene g : genes)
+			g.prepare();
+		prepared();
+	}
+	
+	/**
+	 * gives ids to genes and segments and makes introns index. Genes should be already sorted and prepared (see loaded and CompiledAnnotation)
+	 */
+	void prepared(){
+		for(Gene g : genes) {
+			g.setInx(ids.nextGene());
+			for(int i=0;i<g.getSegCount();i++)
+				g.getSeg(i).setInx(ids.nextSeg());
 		}
+		index(null);
+	}
+	
+	/**
+	 * makes introns index (and splice sites to genes hashes if needed) and gives ids to introns that have no ones. Genes should be already prepared.
+	 * Introns shared by several genes should be the same object.
+	 * @param parent index of annotation the subset is made from (genes of its introns are already known), null for loaded annotation
+	 */
+	private void index(IntronIndex parent){
+		int cnt = 0;
+		for(Gene g : genes)
+			cnt += g.getIntronCount();
+		introns = new IntronIndex(cnt);
 		for(Gene g : genes){
-			g.prepare();
 			for(int i=0;i<g.getIntronCount();i++){
 				Intron in = g.getIntron(i);
-				introns.put(in, in);
-				List<Gene> gs = intron2genes.get(in);
-				if(gs == null){
-					gs = new LinkedList<>();
-					intron2genes.put(in, gs);
+				//genes of the intron are within subset (see split), so they are not linked again
+				if(parent != null) {
+					introns.add(parent.get(in.start, in.stop, in.strand));
+					continue;
 				}
-				gs.add(g);
-				if(Settings.S().getBoolean(Settings.LOOK_FOR_GENE_FOR_UNKNOWN_JUNCTIONS)) {
-					HashSet<Gene> sgs = leftSS2genes.get(in.start);
-					if(sgs == null) {
-						sgs = new HashSet<>();
-						leftSS2genes.put(in.start, sgs);
-					}
-					sgs.add(g);
-					sgs = rightSS2genes.get(in.stop);
-					if(sgs == null) {
-						sgs = new HashSet<>();
-						rightSS2genes.put(in.stop, sgs);
-					}
-					sgs.add(g);
+				if(in.getInx() < 0)
+					in.setInx(ids.nextIntron());
+				Intron c = introns.get(in.start, in.stop, in.strand);
+				if(c == null) {
+					c = in;
+					c.genes = NO_GENES;
+					introns.add(c);
+				}
+				if(c.genes.length == 0 || c.genes[c.genes.length-1] != g) {
+					c.genes = Arrays.copyOf(c.genes, c.genes.length+1);
+					c.genes[c.genes.length-1] = g;
 				}
 			}
 		}
+		if(parent == null)
+			for(Intron in : introns.values())
+				Arrays.sort(in.genes, BY_INX);
+		if(opt.look_for_gene_for_unknown_junctions)
+			indexSpliceSites();
 	}
 	
 	/**
-	 * 
+	 * makes splice sites to genes hashes, only introns from annotation are used (not ones that were found in reads) 
+	 */
+	private void indexSpliceSites() {
+		leftSS2genes = new HashMap<>();
+		rightSS2genes = new HashMap<>();
+		for(Gene g : genes){
+			for(int i=0;i<g.getIntronCount();i++){
+				Intron in = g.getIntron(i);
+				if(in.found_by != null)
+					continue;
+				HashSet<Gene> sgs = leftSS2genes.get(in.start);
+				if(sgs == null) {
+					sgs = new HashSet<>();
+					leftSS2genes.put(in.start, sgs);
+				}
+				sgs.add(g);
+				sgs = rightSS2genes.get(in.stop);
+				if(sgs == null) {
+					sgs = new HashSet<>();
+					rightSS2genes.put(in.stop, sgs);
+				}
+				sgs.add(g);
+			}
+		}
+	}
+	
+	/**
+	 * Should be called when all reads of the chromosome were counted (for input sorted by coordinates).
+	 * Releases structures that are used only while reads are counted: splice sites to genes hashes, gene windows and cache of read resolutions.
+	 * Genes, introns and their ids are kept. Reads still could be counted after release, the structures are made again then.
+	 */
+	public void release() {
+		leftSS2genes = null;
+		rightSS2genes = null;
+		sweep_pos = null;
+		sweep_neg = null;
+		cache.clear();
+		read_ints = new Intron[8];
+		read_ints_cnt = 0;
+		read_found = new Intron[8];
+		read_found_cnt = 0;
+		read_genes = new Gene[8];
+		read_genes_tmp = new Gene[8];
+		read_genes_cnt = 0;
+	}
+	
+	/**
+	 * splits chromosome into regions that are not shorter than len (except the last one). 
+	 * Region borders are placed between genes, so no gene belongs to two regions.
+	 * @param chr_length
+	 * @param len
+	 * @return list of regions as {start,stop}
+	 */
+	public ArrayList<int[]> split(int chr_length,int len){
+		ArrayList<Gene> gs = getGenes();
+		Collections.sort(gs,new Comparator<Gene>() {
+			public int compare(Gene o1, Gene o2) {
+				return o1.start - o2.start;
+			}
+		});
+		ArrayList<int[]> r = new ArrayList<>();
+		int start = 1;
+		//max stop of genes that start before p
+		int covered = 0;
+		int inx = 0;
+		for(int p = start+len;p <= chr_length;) {
+			for(;inx<gs.size() && gs.get(inx).start < p;inx++)
+				covered = Math.max(covered, gs.get(inx).stop);
+			if(covered >= p) {
+				p = covered+1;
+				continue;
+			}
+			r.add(new int[] {start,p-1});
+			start = p;
+			p = start+len;
+		}
+		r.add(new int[] {start,chr_length});
+		return r;
+	}
+	
+	/**
+	 * Genes (and their introns) are the same objects as in this annotation and have the same ids,
+	 * so counts made by subset could be merged with counts of this annotation. 
+	 * Subset should be used only for reads that lie within the region, 
+	 * and region borders should not cross genes (see split).
+	 * @param start
+	 * @param stop
+	 * @return annotation that contains only genes that overlap the region
+	 */
+	public ChrAnnotation subset(int start,int stop){
+		ChrAnnotation r = new ChrAnnotation(chr_id, opt, ids);
+		if(gene2found != null)
+			r.gene2found = new HashMap<>();
+		for(Gene g : genes)
+			if(g.start <= stop && g.stop >= start)
+				r.addGene(g);
+		r.index(introns);
+		return r;
+	}
+	
+	/**
+	 * Makes annotation to count reads of another sample, views of the same annotation could be used by different threads.
+	 * Genes, segments and annotated introns are shared, each view has its own introns index (so new introns are found per sample), 
+	 * links of new introns to genes (see getFoundIntrons), read cache and buffers. Should be called for loaded annotation that is not used to count reads itself.
+	 */
+	public ChrAnnotation view(){
+		ChrAnnotation r = new ChrAnnotation(chr_id, opt, ids);
+		r.genes = genes;
+		r.max_gene_length = max_gene_length;
+		r.introns = introns.copy();
+		r.leftSS2genes = leftSS2genes;
+		r.rightSS2genes = rightSS2genes;
+		r.gene2found = new HashMap<>();
+		return r;
+	}
+	
+	/**
+	 * @param g
+	 * @return new introns linked to the gene that are not added into it (see view), null if there are no such introns
+	 */
+	public ArrayList<Intron> getFoundIntrons(Gene g){
+		return gene2found == null?null:gene2found.get(g);
+	}
+	
+	/**
+	 * adds junctions that were found while reads were counted by part
+	 * @param part annotation made by subset
+	 */
+	public void merge(ChrAnnotation part){
+		for(Intron i : part.introns.values())
+			introns.add(i);
+		if(part.gene2found != null)
+			for(Gene g : part.gene2found.keySet())
+				for(Intron i : part.gene2found.get(g))
+					linkFound(g, i);
+		cache.clear();
+	}
+	
+	/**
+	 * adds junctions of the read to read_ints. New junctions are added into annotation.
 	 * @param r
-	 * @param strand
-	 * @return set of introns that are with this read
+	 * @param len number of used values in r
+	 * @param strand if 0, junctions of strand which all junctions have genes are taken (junctions of both strands if there is no such strand or both are good)
 	 */
-	private HashSet<Intron> getIntronsForRead(int[] r,int strand){
+	private void addIntronsForRead(int[] r,int len,int strand){
 		if(strand == 0) {
-			HashSet<Intron> resp = getIntronsForRead(r,  1);
-			HashSet<Intron> resn = getIntronsForRead(r, -1);
-			boolean pos_ok = allIntronsHaveGenes(resp);
-			boolean neg_ok = allIntronsHaveGenes(resn);
-			HashSet<Intron> res = new HashSet<Intron>();
-			
-			if(pos_ok)
-				res.addAll(resp);
-			if(neg_ok)
-				res.addAll(resn);
-			if(!pos_ok & !neg_ok) {
-				res.addAll(resp);
-				res.addAll(resn);
+			int from = read_ints_cnt;
+			addIntronsForRead(r, len,  1);
+			int mid = read_ints_cnt;
+			addIntronsForRead(r, len, -1);
+			boolean pos_ok = allIntronsHaveGenes(from, mid);
+			boolean neg_ok = allIntronsHaveGenes(mid, read_ints_cnt);
+			if(pos_ok && !neg_ok)
+				read_ints_cnt = mid;
+			else if(!pos_ok && neg_ok) {
+				System.arraycopy(read_ints, mid, read_ints, from, read_ints_cnt-mid);
+				read_ints_cnt -= mid-from;
 			}
-			return res;
+			return;
 		}
-		HashSet<Intron> res = new HashSet<>();
-		for(int i=2;i<r.length;i+=2) {
-			Intron newInt = new Intron(r[i-1]+1,r[i]-1,strand);
-			Intron in = introns.get(newInt);
-			if(in != null)
-				res.add(in);
-			else {
-				Log.addStat(Log.NEW_JUNCTIONS_FOUND, 1);
-				res.add(newInt);
-				introns.put(newInt, newInt);
-				LinkedList<Gene> int2genes = new LinkedList<>();
-				intron2genes.put(newInt, int2genes);
-				if(Settings.S().getBoolean(Settings.LOOK_FOR_GENE_FOR_UNKNOWN_JUNCTIONS)){
+		for(int i=2;i<len;i+=2) {
+			Intron in = introns.get(r[i-1]+1, r[i]-1, strand);
+			if(in == null) {
+				in = new Intron(r[i-1]+1,r[i]-1,strand);
+				in.setInx(ids.nextIntron());
+				in.found_by = new BitSet();
+				in.genes = NO_GENES;
+				introns.add(in);
+				if(opt.look_for_gene_for_unknown_junctions){
+					if(leftSS2genes == null)
+						indexSpliceSites();
 					HashSet<Gene> lg = leftSS2genes.get(r[i-1]+1);
 					HashSet<Gene> rg = rightSS2genes.get(r[i]-1);
 					if(lg != null && rg != null) {
-						HashSet<Gene> gs = Util.intersect(lg, rg);
-						if(gs.size() != 0) {
-							for(Gene g: gs) {
-								if(g.strand == strand){
-									g.addIntronAndSort(newInt);
-									int2genes.add(g);
-								}
+						ArrayList<Gene> gs = new ArrayList<>();
+						for(Gene g: Util.intersect(lg, rg)) {
+							if(g.strand == strand){
+								if(gene2found == null)
+									g.addIntronAndSort(in);
+								else
+									linkFound(g, in);
+								gs.add(g);
 							}
 						}
+						in.genes = gs.toArray(NO_GENES);
+						Arrays.sort(in.genes, BY_INX);
 					}
 				}
 			}
+			if(in.found_by != null) {
+				if(read_found_cnt == read_found.length)
+					read_found = Arrays.copyOf(read_found, read_found_cnt*2);
+				read_found[read_found_cnt++] = in;
+			}
+			if(read_ints_cnt == read_ints.length)
+				read_ints = Arrays.copyOf(read_ints, read_ints_cnt*2);
+			read_ints[read_ints_cnt++] = in;
+		}
+	}
+	
+	private void linkFound(Gene g,Intron in) {
+		ArrayList<Intron> l = gene2found.get(g);
+		if(l == null) {
+			l = new ArrayList<>();
+			gene2found.put(g, l);
 		}
-		return res;
+		l.add(in);
 	}
 	
 	/**
-	 * 
-	 * @param ints
-	 * @return set of genes that contains ALL/'at least one' (depends on ONLY_JUNCTIONS_FROM_SAME_GENE) introns
+	 * removes junctions (starting from from) that are already in read_ints before from. Used to join junctions of mates.
+	 * @param from
 	 */
-	private HashSet<Gene> getGenesByIntrons(HashSet<Intron> ints){
-		if(ints.size() == 0)
-			return new HashSet<>();
-		HashSet<Gene> g = new HashSet<Gene>();
-		int j = 0;
-		for(Intron i : ints) {
-			List<Gene> gns = intron2genes.get(i);
-			if(gns != null){
-				if(j>0 && Settings.S().getBoolean(Settings.ONLY_JUNCTIONS_FROM_SAME_GENE))
-					g = Util.intersect(g, gns);
-				else
-					g.addAll(gns);
+	private void removeDuplicatedIntrons(int from) {
+		int n = from;
+		for(int i=from;i<read_ints_cnt;i++) {
+			boolean dup = false;
+			for(int j=0;j<from && !dup;j++)
+				dup = read_ints[j] == read_ints[i];
+			if(!dup)
+				read_ints[n++] = read_ints[i];
+		}
+		read_ints_cnt = n;
+	}
+	
+	/**
+	 * puts into read_genes genes that contain ALL/'at least one' (depends on ONLY_JUNCTIONS_FROM_SAME_GENE) of read_ints.
+	 * Genes of each intron are sorted by ids, so they are intersected (or joined) by single pass. 
+	 */
+	private void resolveGenesByIntrons(){
+		read_genes_cnt = 0;
+		for(int i=0;i<read_ints_cnt;i++) {
+			Gene[] gs = read_ints[i].genes;
+			if(i == 0) {
+				if(read_genes.length < gs.length)
+					read_genes = new Gene[gs.length*2];
+				System.arraycopy(gs, 0, read_genes, 0, gs.length);
+				read_genes_cnt = gs.length;
+			}else if(opt.only_junctions_from_same_gene) {
+				int n = 0;
+				for(int a=0,b=0;a<read_genes_cnt && b<gs.length;) {
+					int c = BY_INX.compare(read_genes[a], gs[b]);
+					if(c == 0) {
+						read_genes[n++] = read_genes[a];
+						a++;
+						b++;
+					}else if(c < 0)
+						a++;
+					else
+						b++;
+				}
+				read_genes_cnt = n;
+			}else {
+				if(read_genes_tmp.length < read_genes_cnt+gs.length)
+					read_genes_tmp = new Gene[(read_genes_cnt+gs.length)*2];
+				int n = 0;
+				int a = 0,b = 0;
+				while(a<read_genes_cnt || b<gs.length) {
+					int c = a == read_genes_cnt?1:b == gs.length?-1:BY_INX.compare(read_genes[a], gs[b]);
+					if(c <= 0) {
+						read_genes_tmp[n++] = read_genes[a++];
+						if(c == 0)
+							b++;
+					}else
+						read_genes_tmp[n++] = gs[b++];
+				}
+				Gene[] t = read_genes;
+				read_genes = read_genes_tmp;
+				read_genes_tmp = t;
+				read_genes_cnt = n;
 			}
-			j++;
+			if(read_genes_cnt == 0 && opt.only_junctions_from_same_gene)
+				break;
 		}
-		return g;
 	}
 	
 	/**
@@ -171,9 +443,9 @@ public class ChrAnnotation {
 	protected HashSet<Gene> getAllGenesByIntrons(HashSet<Intron> ints){
 		HashSet<Gene> g = new HashSet<Gene>();
 		for(Intron i : ints){
-			if(intron2genes.containsKey(i)){
-				g.addAll(intron2genes.get(i));
-			}
+			Intron in = introns.get(i.start, i.stop, i.strand);
+			if(in != null)
+				Collections.addAll(g, in.genes);
 		}
 		return g;
 	}
@@ -188,6 +460,8 @@ public class ChrAnnotation {
 		}
 	}
 	/**
+	 * Uses window of genes (see GeneSweep) if region doesn't start before the previous one, 
+	 * otherwise looks for genes by binary search.
 	 * @param strand shouldn't be 0
 	 * @return returns genes that overlap with given region
 	 */
@@ -195,6 +469,17 @@ public class ChrAnnotation {
 		if(strand != 1 && strand != -1)
 			throw new RuntimeException("strand should be either 1 or -1");
 		HashSet<Gene> gs = new HashSet<>();
+		if(strand == 1) {
+			if(sweep_pos == null)
+				sweep_pos = new GeneSweep(genes, 1);
+			if(sweep_pos.getGenes(start, stop, gs))
+				return gs;
+		}else {
+			if(sweep_neg == null)
+				sweep_neg = new GeneSweep(genes, -1);
+			if(sweep_neg.getGenes(start, stop, gs))
+				return gs;
+		}
 		int inx = Collections.binarySearch(genes, new Gene(start,stop,strand,chr_id));
 		if(inx < 0)
 			inx = -inx-1;
@@ -217,9 +502,14 @@ public class ChrAnnotation {
 	}
 	
 	
-	private void addCov2Genes(HashMap<Gene,HashSet<Seg>> gene2segs,HashSet<Intron> cintrons,boolean paired)	{
-		if(gene2segs.size() > 0)
-			Log.addStat(Log.GENE_READS, paired?2:1);
+	/**
+	 * decides which of given genes and segments, and of junctions of the read (read_ints) the read (or pair) should be counted to
+	 */
+	private void addCov2Genes(HashMap<Gene,HashSet<Seg>> gene2segs,Resolution res)	{
+		ArrayList<Gene> cgenes = new ArrayList<>();
+		ArrayList<Seg> csegs = new ArrayList<>();
+		ArrayList<Intron> cints = new ArrayList<>();
+		res.gene_reads = gene2segs.size() > 0;
 		//filter genes were reads overlap only intron (if other exists)
 		HashMap<Gene,HashSet<Seg>> gene2segs_ = new HashMap<>();
 		for(Gene g : gene2segs.keySet()) {
@@ -242,91 +532,156 @@ public class ChrAnnotation {
 				has_exn = has_exn || s.segtype == Seg.segType.EXN;
 				has_internal_exn = has_internal_exn || (s.segtype == Seg.segType.EXN && (s.segpos == Seg.segPos.INTERNAL || s.segpos == Seg.segPos.ONLY));
 			}
-			if(!Settings.S().getBoolean(Settings.COUNT_ONLY_BORDER_READS) || gene2segs.get(g).size()!=1){
+			if(!opt.count_only_border_reads || gene2segs.get(g).size()!=1){
 				for(Seg s : gene2segs.get(g)) {
 					if(s.segtype == Seg.segType.INT)
-						s.addCov();
-					else if(!has_intron || Settings.S().getBoolean(Settings.COUNT_INTRON_READS)) {
-						s.addCov();
+						csegs.add(s);
+					else if(!has_intron || opt.count_intron_reads) {
+						csegs.add(s);
 						count_junc = true;
 					}
 				}
 			}
-			if((!has_intron || Settings.S().getBoolean(Settings.COUNT_INTRON_READS)) && has_exn &&
-				(has_internal_exn || !Settings.S().getBoolean(Settings.COUNT_ONLY_INTERNAL))) {
-					g.addCov();
+			if((!has_intron || opt.count_intron_reads) && has_exn &&
+				(has_internal_exn || !opt.count_only_internal)) {
+					cgenes.add(g);
 			}				
 		}
 		 
-		for(Intron i : cintrons)
-			if(count_junc || intron2genes.get(i).size()==0) // if it is unknown junction then we can count any read for it
-				i.addCov();
-			
-		if(count_junc)
-			Log.addStat(Log.EXON_READS, paired?2:1);
+		for(int i=0;i<read_ints_cnt;i++)
+			if(count_junc || read_ints[i].genes.length==0) // if it is unknown junction then we can count any read for it
+				cints.add(read_ints[i]);
+		res.exon_reads = count_junc;
+		res.genes = cgenes.toArray(new Gene[cgenes.size()]);
+		res.segs = csegs.toArray(new Seg[csegs.size()]);
+		res.introns = cints.toArray(new Intron[cints.size()]);
 	}
 	
-	private boolean allIntronsHaveGenes(HashSet<Intron> ints){
-		for(Intron in : ints)
-			if(intron2genes.get(in).size() == 0)
+	/**
+	 * @return true if all read_ints in given range have genes
+	 */
+	private boolean allIntronsHaveGenes(int from,int to){
+		for(int i=from;i<to;i++)
+			if(read_ints[i].genes.length == 0)
 				return false;
 		return true;
 	}
 	
-	public void addRead(int[] r,int strand) {
-		Log.addStat(Log.USED_READS, 1);
-		HashSet<Intron> cintrons = new HashSet<>();
-		HashSet<Gene> cgenes = null;
-		if(r.length > 2) {
-			Log.addStat(Log.JUNCTIONS_CNT, 1);
-			cintrons = getIntronsForRead(r, strand);
-			if(!allIntronsHaveGenes(cintrons)) {
-				Log.addStat(Log.UNKNOWN_JUNCTION, 1);
-				if(!Settings.S().getBoolean(Settings.USE_READS_WITH_UNKNOWN_JUNCTIONS))
+	/**
+	 * @param r
+	 * @param strand
+	 * @param cnt counts of sample the read belongs to
+	 */
+	public void addRead(int[] r,int strand,Counts cnt) {
+		addRead(r, r.length, strand, cnt);
+	}
+	
+	/**
+	 * Read with the same blocks and strand as one of reads counted at the same position is not resolved again (see ReadCache).
+	 * @param r mapped blocks of the read, could be reused by caller after the call
+	 * @param len number of used values in r
+	 * @param strand
+	 * @param cnt counts of sample the read belongs to
+	 */
+	public void addRead(int[] r,int len,int strand,Counts cnt) {
+		Log.statChr(chr_id);
+		Resolution res = cache.get(r, len, null, 0, strand);
+		if(res == null) {
+			res = cache.add(r, len, null, 0, strand);
+			resolveRead(r, len, strand, res);
+		}
+		res.count(cnt);
+	}
+	
+	private void resolveRead(int[] r,int len,int strand,Resolution res) {
+		read_ints_cnt = 0;
+		read_found_cnt = 0;
+		HashMap<Gene,HashSet<Seg>> gene2segs = new HashMap<>();
+		if(len > 2) {
+			res.junctions = true;
+			addIntronsForRead(r, len, strand);
+			res.setFound(read_found, read_found_cnt);
+			if(!allIntronsHaveGenes(0, read_ints_cnt)) {
+				res.unknown_junction = true;
+				if(!opt.use_reads_with_unknown_junctions) {
+					res.skipped = true;
 					return;
+				}
 			}
-			cgenes = getGenesByIntrons(cintrons);
-			if(cgenes.size()==0 && cintrons.size()!=0)  
-				Log.addStat(Log.UNKNOWN_JUNCTION_COMB, 1);
-		}else
-			cgenes = getGenesByOverlap(r[0], r[1], strand);
-		
-		HashMap<Gene,HashSet<Seg>> gene2segs = new HashMap<>();
-		for(Gene g : cgenes) {
-			gene2segs.put(g,g.getSegForRead(r));
-		}
-		addCov2Genes(gene2segs,cintrons,false);
-	}
-	
-	
-	public void addReads(int[] r1,int[] r2, int strand) {
-		Log.addStat(Log.USED_READS, 2);
-		HashSet<Intron> cintrons = new HashSet<>();
-		HashSet<Gene> cgenes = null;
-		if(r1.length > 2 || r2.length > 2) {
-			Log.addStat(Log.JUNCTIONS_CNT, 1);
-			cintrons = getIntronsForRead(r1, strand);
-			HashSet<Intron> tmp = getIntronsForRead(r2, strand);
-			boolean unknown_junc = !allIntronsHaveGenes(cintrons) || !allIntronsHaveGenes(tmp);
-			if(unknown_junc)
-				Log.addStat(Log.UNKNOWN_JUNCTION, 2);
-			if(unknown_junc && !Settings.S().getBoolean(Settings.USE_READS_WITH_UNKNOWN_JUNCTIONS)) 
-				return;
-			cintrons.addAll(tmp);
-			cgenes = getGenesByIntrons(cintrons);
-			if(cgenes.size()==0 && cintrons.size() != 0)
-				Log.addStat(Log.UNKNOWN_JUNCTION_COMB, 2);
+			resolveGenesByIntrons();
+			res.unknown_junction_comb = read_genes_cnt==0 && read_ints_cnt!=0;
+			for(int i=0;i<read_genes_cnt;i++)
+				gene2segs.put(read_genes[i],read_genes[i].getSegForRead(r, len));
 		}else {
-			cgenes = getGenesByOverlap(r1[0], r1[1], strand);
-			cgenes.addAll(getGenesByOverlap(r2[0], r2[1], strand));
+			for(Gene g : getGenesByOverlap(r[0], r[1], strand))
+				gene2segs.put(g,g.getSegForRead(r, len));
 		}
+		addCov2Genes(gene2segs,res);
+	}
+	
+	/**
+	 * @param r1
+	 * @param r2
+	 * @param strand
+	 * @param cnt counts of sample the reads belong to
+	 */
+	public void addReads(int[] r1,int[] r2, int strand,Counts cnt) {
+		addReads(r1, r1.length, r2, r2.length, strand, cnt);
+	}
+	
+	/**
+	 * @param r1 mapped blocks of the first mate, could be reused by caller after the call
+	 * @param len1 number of used values in r1
+	 * @param r2
+	 * @param len2
+	 * @param strand
+	 * @param cnt counts of sample the reads belong to
+	 */
+	public void addReads(int[] r1,int len1,int[] r2,int len2, int strand,Counts cnt) {
+		Log.statChr(chr_id);
+		Resolution res = cache.get(r1, len1, r2, len2, strand);
+		if(res == null) {
+			res = cache.add(r1, len1, r2, len2, strand);
+			resolvePair(r1, len1, r2, len2, strand, res);
+		}
+		res.count(cnt);
+	}
+	
+	private void resolvePair(int[] r1,int len1,int[] r2,int len2, int strand,Resolution res) {
+		read_ints_cnt = 0;
+		read_found_cnt = 0;
 		HashMap<Gene,HashSet<Seg>> gene2segs = new HashMap<>();
-		for(Gene g : cgenes) {
-			HashSet<Seg> segs = g.getSegForRead(r1);
-			segs.addAll(g.getSegForRead(r2));
-			gene2segs.put(g,segs);
+		if(len1 > 2 || len2 > 2) {
+			res.junctions = true;
+			addIntronsForRead(r1, len1, strand);
+			int n1 = read_ints_cnt;
+			addIntronsForRead(r2, len2, strand);
+			res.setFound(read_found, read_found_cnt);
+			if(!allIntronsHaveGenes(0, read_ints_cnt)) {
+				res.unknown_junction = true;
+				if(!opt.use_reads_with_unknown_junctions) {
+					res.skipped = true;
+					return;
+				}
+			}
+			removeDuplicatedIntrons(n1);
+			resolveGenesByIntrons();
+			res.unknown_junction_comb = read_genes_cnt==0 && read_ints_cnt != 0;
+			for(int i=0;i<read_genes_cnt;i++)
+				addSegsForPair(gene2segs, read_genes[i], r1, len1, r2, len2);
+		}else {
+			HashSet<Gene> cgenes = getGenesByOverlap(r1[0], r1[1], strand);
+			cgenes.addAll(getGenesByOverlap(r2[0], r2[1], strand));
+			for(Gene g : cgenes)
+				addSegsForPair(gene2segs, g, r1, len1, r2, len2);
 		}
-		addCov2Genes(gene2segs,cintrons,true);
+		addCov2Genes(gene2segs,res);
+	}
+	
+	private void addSegsForPair(HashMap<Gene,HashSet<Seg>> gene2segs,Gene g,int[] r1,int len1,int[] r2,int len2) {
+		HashSet<Seg> segs = g.getSegForRead(r1, len1);
+		segs.addAll(g.getSegForRead(r2, len2));
+		gene2segs.put(g,segs);
 	}
 	
 	public String getID() {
@@ -0,0 +1,243 @@
+package util.bio;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.zip.CRC32C;
+
+import util.CountOptions;
+import util.Log;
+
+/**
+ * Annotation prepared for read counting (see compile_annotation and ann_compiled) stored in binary file.
+ * Genes are stored sorted and prepared (with pseudo-segments), so loading is just reading of memory mapped file,
+ * without parsing, sorting and preparing. Features get the same ids as if annotation was loaded from gff (see ChrAnnotation.loaded),
+ * intron index and splice sites hashes are made by ChrAnnotation.prepared.
+ * File keeps length, modification time and checksum of source gff and gene black list, annotation is not used if any of them is changed.
+ * Checksum of gff is calculated only if its length or modification time differ from stored ones (or if ann_compiled_verify is true).
+ * <p>
+ * Format (big-endian): magic, int version, long gff length, long gff modification time, int gff checksum (CRC32C), string black list,
+ * int numbers of genes, segments and introns in gff (as they are reported by loading of gff), int number of chromosomes, then for each chromosome in order of ids:
+ * string name, int number of introns, introns (int start, int stop, byte strand), int number of genes and genes in sorted order:
+ * int start, int stop, byte strand, string id, int number of segments, segments (int start, int stop, byte type, byte position, string id),
+ * int number of introns, indexes of introns in introns of chromosome.
+ * Then int number of genes and gene ids (positions in annotation) in the order they were in gff.
+ * Strings are int length (-1 for null) followed by UTF-8 bytes.
+ */
+public class CompiledAnnotation {
+	private static final byte[] MAGIC = {'S','A','J','R','A','N','N','C'};
+	private static final int VERSION = 3;
+
+	public final HashMap<String, ChrAnnotation> chrs = new HashMap<>();
+	//in order of gff
+	public final ArrayList<Gene> genes = new ArrayList<>();
+	public final FeatureIds ids = new FeatureIds();
+	//numbers of genes, segments and introns in gff
+	public final int[] stat = new int[3];
+
+	private CompiledAnnotation() {
+	}
+
+	/**
+	 * @param gff
+	 * @return {length,checksum} of the file
+	 * @throws IOException
+	 */
+	private static long[] checksum(String gff) throws IOException {
+		CRC32C crc = new CRC32C();
+		FileInputStream in = new FileInputStream(gff);
+		byte[] b = new byte[1<<20];
+		long len = 0;
+		for(int l = in.read(b);l != -1;l = in.read(b)) {
+			crc.update(b, 0, l);
+			len += l;
+		}
+		in.close();
+		return new long[] {len,(int)crc.getValue()};
+	}
+
+	/**
+	 * writes loaded annotation. File is written under temporary name and then renamed,
+	 * so processes that read it never see incomplete file.
+	 * @param f
+	 * @param gff source of annotation
+	 * @param black_list gene black list annotation was loaded with
+	 * @param chrs loaded chromosomes
+	 * @param genes all genes in order of gff
+	 * @param stat numbers of genes, segments and introns in gff
+	 * @throws IOException
+	 */
+	public static void write(String f,String gff,String black_list,HashMap<String, ChrAnnotation> chrs,ArrayList<Gene> genes,int[] stat) throws IOException {
+		long[] sum = checksum(gff);
+		File tmp = new File(f+".tmp");
+		DataOutputStream o = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1<<20));
+		o.write(MAGIC);
+		o.writeInt(VERSION);
+		o.writeLong(sum[0]);
+		o.writeLong(new File(gff).lastModified());
+		o.writeInt((int)sum[1]);
+		writeString(o, black_list);
+		for(int s : stat)
+			o.writeInt(s);
+		//chromosomes were loaded (and got ids) in order of names
+		ArrayList<String> chr_ids = new ArrayList<>(chrs.keySet());
+		Collections.sort(chr_ids);
+		o.writeInt(chr_ids.size());
+		IdentityHashMap<Gene, Integer> gene2pos = new IdentityHashMap<>();
+		for(String c : chr_ids) {
+			ChrAnnotation a = chrs.get(c);
+			writeString(o, c);
+			IdentityHashMap<Intron, Integer> ints = new IdentityHashMap<>();
+			ArrayList<Intron> intl = new ArrayList<>();
+			for(Gene g : a.genes)
+				for(int i=0;i<g.getIntronCount();i++)
+					if(!ints.containsKey(g.getIntron(i))) {
+						ints.put(g.getIntron(i), intl.size());
+						intl.add(g.getIntron(i));
+					}
+			o.writeInt(intl.size());
+			for(Intron i : intl) {
+				o.writeInt(i.start);
+				o.writeInt(i.stop);
+				o.writeByte(i.strand);
+			}
+			o.writeInt(a.genes.size());
+			for(Gene g : a.genes) {
+				gene2pos.put(g, gene2pos.size());
+				o.writeInt(g.start);
+				o.writeInt(g.stop);
+				o.writeByte(g.strand);
+				writeString(o, g.getId());
+				o.writeInt(g.getSegCount());
+				for(int i=0;i<g.getSegCount();i++) {
+					Seg s = g.getSeg(i);
+					o.writeInt(s.start);
+					o.writeInt(s.stop);
+					o.writeByte(s.segtype.ordinal());
+					o.writeByte(s.segpos.ordinal());
+					writeString(o, s.getId());
+				}
+				o.writeInt(g.getIntronCount());
+				for(int i=0;i<g.getIntronCount();i++)
+					o.writeInt(ints.get(g.getIntron(i)));
+			}
+		}
+		o.writeInt(genes.size());
+		for(Gene g : genes)
+			o.writeInt(gene2pos.get(g));
+		o.close();
+		Files.move(tmp.toPath(), new File(f).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static void writeString(DataOutputStream o,String s) throws IOException {
+		if(s == null) {
+			o.writeInt(-1);
+			return;
+		}
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		o.writeInt(b.length);
+		o.write(b);
+	}
+
+	private static String readString(ByteBuffer b) {
+		int l = b.getInt();
+		if(l == -1)
+			return null;
+		byte[] s = new byte[l];
+		b.get(s);
+		return new String(s, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @param f
+	 * @param gff source of annotation, it is checked that it was not changed since compilation
+	 * @param black_list current gene black list
+	 * @param verify if true, checksum of gff is checked even if its length and modification time are the same as at compilation
+	 * @param opt
+	 * @return annotation, or null if file is made by another version, from another gff or with another black list
+	 * @throws IOException
+	 */
+	public static CompiledAnnotation read(String f,String gff,String black_list,boolean verify,CountOptions opt) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		FileChannel ch = raf.getChannel();
+		MappedByteBuffer b = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+		raf.close();
+		byte[] magic = new byte[MAGIC.length];
+		try {
+			b.get(magic);
+			if(!Arrays.equals(magic, MAGIC))
+				throw new IOException("File '"+f+"' is not compiled annotation");
+			if(b.getInt() != VERSION) {
+				Log.warn("Compiled annotation '"+f+"' is made by another version.");
+				return null;
+			}
+			long len = b.getLong();
+			long mtime = b.getLong();
+			int crc = b.getInt();
+			if(!black_list.equals(readString(b))) {
+				Log.warn("Compiled annotation '"+f+"' is made with another gene black list.");
+				return null;
+			}
+			File src = new File(gff);
+			if(verify || src.length() != len || src.lastModified() != mtime) {
+				long[] sum = checksum(gff);
+				if(sum[0] != len || (int)sum[1] != crc) {
+					Log.warn("Compiled annotation '"+f+"' is made from another version of '"+gff+"'.");
+					return null;
+				}
+			}
+			CompiledAnnotation r = new CompiledAnnotation();
+			for(int i=0;i<r.stat.length;i++)
+				r.stat[i] = b.getInt();
+			ArrayList<Gene> pos2gene = new ArrayList<>();
+			Seg.segType[] types = Seg.segType.values();
+			Seg.segPos[] poss = Seg.segPos.values();
+			for(int nchr = b.getInt();nchr > 0;nchr--) {
+				String chr_id = readString(b);
+				ChrAnnotation c = new ChrAnnotation(chr_id, opt, r.ids);
+				Intron[] ints = new Intron[b.getInt()];
+				for(int i=0;i<ints.length;i++)
+					ints[i] = new Intron(b.getInt(), b.getInt(), b.get());
+				for(int ngenes = b.getInt();ngenes > 0;ngenes--) {
+					int start = b.getInt();
+					int stop = b.getInt();
+					int strand = b.get();
+					Gene g = new Gene(start, stop, strand, chr_id, readString(b));
+					for(int nsegs = b.getInt();nsegs > 0;nsegs--) {
+						int sstart = b.getInt();
+						int sstop = b.getInt();
+						Seg.segType t = types[b.get()];
+						g.addSeg(new Seg(sstart, sstop, strand, t, poss[b.get()], readString(b)));
+					}
+					for(int nints = b.getInt();nints > 0;nints--)
+						g.addIntron(ints[b.getInt()]);
+					c.addGene(g);
+					pos2gene.add(g);
+				}
+				c.prepared();
+				r.chrs.put(chr_id, c);
+			}
+			for(int n = b.getInt();n > 0;n--)
+				r.genes.add(pos2gene.get(b.getInt()));
+			return r;
+		}catch(BufferUnderflowException | IndexOutOfBoundsException e) {
+			throw new IOException("Compiled annotation '"+f+"' is corrupted");
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package util.bio;
+
+import java.util.Arrays;
+
+/**
+ * Read counts of genes, segments and introns of one sample (or of part of its reads counted by one thread).
+ * Counts are kept in arrays indexed by feature ids (see FeatureIds), so annotation objects do not keep counts 
+ * and counts collected by different threads are merged by addition.
+ */
+public class Counts {
+	public final FeatureIds ids;
+	//sample, introns found in reads are marked as found by it (see ChrAnnotation.getIntrons(int))
+	public final int col;
+	private long[] genes;
+	private long[] segs;
+	private long[] introns;
+	
+	public Counts(FeatureIds ids,int col) {
+		this.ids = ids;
+		this.col = col;
+		genes = new long[ids.getGeneCount()];
+		segs = new long[ids.getSegCount()];
+		introns = new long[ids.getIntronCount()];
+	}
+	
+	public void add(Gene g) {
+		genes = inc(genes, g.getInx());
+	}
+	
+	public void add(Seg s) {
+		segs = inc(segs, s.getInx());
+	}
+	
+	/**
+	 * intron could be found in reads after counts were created, so array of introns grows if needed
+	 * @param i
+	 */
+	public void add(Intron i) {
+		introns = inc(introns, i.getInx());
+	}
+	
+	public long get(Gene g) {
+		return get(genes, g.getInx());
+	}
+	
+	public long get(Seg s) {
+		return get(segs, s.getInx());
+	}
+	
+	public long get(Intron i) {
+		return get(introns, i.getInx());
+	}
+	
+	/**
+	 * adds counts (of the same sample, collected by another thread)
+	 * @param c
+	 */
+	public void merge(Counts c) {
+		genes = add(genes, c.genes);
+		segs = add(segs, c.segs);
+		introns = add(introns, c.introns);
+	}
+	
+	private static long[] inc(long[] a,int inx) {
+		if(inx >= a.length)
+			a = Arrays.copyOf(a, Math.max(inx+1, a.length*2));
+		a[inx]++;
+		return a;
+	}
+	
+	private static long get(long[] a,int inx) {
+		return inx < a.length?a[inx]:0;
+	}
+	
+	private static long[] add(long[] a,long[] b) {
+		if(b.length > a.length)
+			a = Arrays.copyOf(a, b.length);
+		for(int i=0;i<b.length;i++)
+			a[i] += b[i];
+		return a;
+	}
+}
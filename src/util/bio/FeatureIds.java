@@ -0,0 +1,38 @@
+package util.bio;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Gives dense ids to genes, segments and introns (see Interval.getInx), ids are positions of the features in counter arrays (see Counts).
+ * All chromosomes of annotation (together with their subsets and copies) share the same ids.
+ * Introns found in reads get their ids while reads are counted, so ids could be taken by several threads.
+ */
+public class FeatureIds {
+	private final AtomicInteger genes = new AtomicInteger();
+	private final AtomicInteger segs = new AtomicInteger();
+	private final AtomicInteger introns = new AtomicInteger();
+	
+	int nextGene() {
+		return genes.getAndIncrement();
+	}
+	
+	int nextSeg() {
+		return segs.getAndIncrement();
+	}
+	
+	int nextIntron() {
+		return introns.getAndIncrement();
+	}
+	
+	public int getGeneCount() {
+		return genes.get();
+	}
+	
+	public int getSegCount() {
+		return segs.get();
+	}
+	
+	public int getIntronCount() {
+		return introns.get();
+	}
+}
@@ -0,0 +1,130 @@
+package util.bio;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPInputStream;
+
+import util.BGZFInputStream;
+
+/**
+ * Reads GFF file by chunks that end by line ends. If threads is more than 1, chunks are parsed in parallel ahead of reading
+ * (up to 2*threads chunks are kept in memory) and BGZF compressed file is also inflated in parallel.
+ * Attributes of features parsed in parallel are already parsed, so they could be read from different threads.
+ */
+public class GFFChunkReader {
+	//size of chunks
+	private static final int CHUNK = 1<<22;
+
+	private final InputStream in;
+	private final ExecutorService pool;
+	private final int ahead;
+	private final ArrayDeque<Future<ArrayList<GFFeature>>> parts = new ArrayDeque<>();
+	//incomplete line at the end of last chunk
+	private byte[] rest = new byte[0];
+	private boolean eof = false;
+
+	public GFFChunkReader(String fname,int threads) throws IOException {
+		if(threads > 1) {
+			pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "gff-parser");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			ahead = 2*threads;
+		}else {
+			pool = null;
+			ahead = 1;
+		}
+		InputStream i = new BufferedInputStream(new FileInputStream(fname), 1<<16);
+		if(fname.endsWith(".gz"))
+			i = pool != null && BGZFInputStream.isBGZF(i)?new BGZFInputStream(i, pool, threads*4):new GZIPInputStream(i, 1<<16);
+		in = i;
+	}
+
+	/**
+	 * @return features of next chunk in order of file, null if there are no more features
+	 * @throws IOException
+	 * @throws GFFException
+	 */
+	public ArrayList<GFFeature> next() throws IOException, GFFException {
+		while(parts.size() < ahead && !eof)
+			readChunk();
+		if(parts.isEmpty())
+			return null;
+		try {
+			return parts.poll().get();
+		}catch(InterruptedException e) {
+			throw new IOException(e);
+		}catch(ExecutionException e) {
+			if(e.getCause() instanceof GFFException)
+				throw (GFFException)e.getCause();
+			if(e.getCause() instanceof RuntimeException)
+				throw (RuntimeException)e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+
+	private void readChunk() throws IOException {
+		final byte[] chunk = Arrays.copyOf(rest, Math.max(CHUNK, rest.length*2));
+		int l = rest.length;
+		while(l < chunk.length) {
+			int n = in.read(chunk, l, chunk.length-l);
+			if(n == -1) {
+				eof = true;
+				break;
+			}
+			l += n;
+		}
+		//last line could be incomplete
+		int end = l;
+		if(!eof)
+			for(;end > 0 && chunk[end-1] != '\n';end--);
+		//line is longer than chunk
+		if(end == 0 && !eof) {
+			rest = chunk;
+			return;
+		}
+		rest = Arrays.copyOfRange(chunk, end, l);
+		final int len = end;
+		Callable<ArrayList<GFFeature>> parse = new Callable<ArrayList<GFFeature>>() {
+			public ArrayList<GFFeature> call() throws IOException, GFFException {
+				ArrayList<GFFeature> r = new ArrayList<>();
+				GFFParser p = new GFFParser(chunk, len);
+				for(GFFeature f=p.next();f != null;f=p.next()) {
+					//attributes are parsed here, so features could be used from different threads
+					if(pool != null)
+						f.parseAttrs();
+					r.add(f);
+				}
+				return r;
+			}
+		};
+		if(pool != null) {
+			parts.add(pool.submit(parse));
+		}else {
+			FutureTask<ArrayList<GFFeature>> t = new FutureTask<>(parse);
+			t.run();
+			parts.add(t);
+		}
+	}
+
+	public void close() throws IOException {
+		in.close();
+		if(pool != null)
+			pool.shutdownNow();
+	}
+}
@@ -0,0 +1,277 @@
+package util.bio;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.zip.GZIPInputStream;
+
+import util.Log;
+import util.Util;
+
+/**
+ * Line of annotation with its sort key: chromosome, gene_id and whether it is gene line
+ */
+class SortLine {
+	static final Comparator<SortLine> BY_KEY = new Comparator<SortLine>() {
+		public int compare(SortLine o1, SortLine o2) {
+			int r = o1.seqname.compareTo(o2.seqname);
+			if(r != 0)
+				return r;
+			r = o1.gene_id.compareTo(o2.gene_id);
+			if(r != 0)
+				return r;
+			//genes first
+			return Boolean.compare(!o1.gene, !o2.gene);
+		}
+	};
+
+	final String seqname;
+	final String gene_id;
+	final boolean gene;
+	final String line;
+
+	SortLine(String line) throws GFFException {
+		GFFeature f = new GFFeature(line);
+		GFFGeneReader.checkGeneId(f);
+		seqname = f.seqname;
+		gene_id = f.getAttr("gene_id");
+		gene = f.feature.equals("gene");
+		this.line = line;
+	}
+}
+
+/**
+ * Annotation sorted by chromosome and gene_id by external merge sort: lines are sorted by runs that fit memory,
+ * runs are written into temporary files and then merged. Lines of the same key keep order of file.
+ */
+class SortedGFF {
+	//number of chars in lines of one run
+	private static final long RUN_CHARS = 1L<<25;
+
+	private final ArrayList<File> files = new ArrayList<>();
+	//the only run, if whole file fits memory
+	private ArrayList<SortLine> mem = null;
+	private int mem_pos = 0;
+	//runs by their current lines, ties are resolved by run index
+	private final PriorityQueue<Run> runs = new PriorityQueue<>(11, new Comparator<Run>() {
+		public int compare(Run o1, Run o2) {
+			int r = SortLine.BY_KEY.compare(o1.cur, o2.cur);
+			return r != 0?r:Integer.compare(o1.inx, o2.inx);
+		}
+	});
+
+	private static class Run {
+		final int inx;
+		final BufferedReader in;
+		SortLine cur;
+
+		Run(int inx,File f) throws IOException, GFFException {
+			this.inx = inx;
+			in = new BufferedReader(new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8), 1<<16);
+			advance();
+		}
+
+		/**
+		 * @return false if run is finished
+		 */
+		boolean advance() throws IOException, GFFException {
+			String l = in.readLine();
+			if(l == null) {
+				in.close();
+				return false;
+			}
+			cur = new SortLine(l);
+			return true;
+		}
+	}
+
+	SortedGFF(String fname,int threads) throws IOException, GFFException {
+		InputStream i = new FileInputStream(fname);
+		if(fname.endsWith(".gz"))
+			i = new GZIPInputStream(i, 1<<16);
+		BufferedReader in = new BufferedReader(new InputStreamReader(i, StandardCharsets.UTF_8), 1<<16);
+		ArrayList<SortLine> run = new ArrayList<>();
+		long chars = 0;
+		for(String l = in.readLine();l != null;l = in.readLine()) {
+			if(l.startsWith("#"))
+				continue;
+			run.add(new SortLine(l));
+			chars += l.length();
+			if(chars >= RUN_CHARS) {
+				writeRun(run, threads);
+				run = new ArrayList<>();
+				chars = 0;
+			}
+		}
+		in.close();
+		Util.sort(run, SortLine.BY_KEY, threads);
+		if(files.isEmpty()) {
+			mem = run;
+			return;
+		}
+		if(!run.isEmpty())
+			writeRun(run, threads);
+		for(int r=0;r<files.size();r++) {
+			Run rn = new Run(r, files.get(r));
+			if(rn.cur != null)
+				runs.add(rn);
+		}
+	}
+
+	private void writeRun(ArrayList<SortLine> run,int threads) throws IOException {
+		Util.sort(run, SortLine.BY_KEY, threads);
+		File f = File.createTempFile("sajr", ".gff");
+		f.deleteOnExit();
+		files.add(f);
+		BufferedWriter o = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f), StandardCharsets.UTF_8), 1<<16);
+		for(SortLine l : run) {
+			o.write(l.line);
+			o.write('\n');
+		}
+		o.close();
+	}
+
+	/**
+	 * @return next feature in sorted order, null if there are no more features
+	 */
+	GFFeature next() throws IOException, GFFException {
+		if(mem != null) {
+			if(mem_pos == mem.size())
+				return null;
+			SortLine l = mem.get(mem_pos);
+			mem.set(mem_pos++, null);
+			return new GFFeature(l.line);
+		}
+		Run r = runs.poll();
+		if(r == null)
+			return null;
+		String l = r.cur.line;
+		if(r.advance())
+			runs.add(r);
+		return new GFFeature(l);
+	}
+
+	void close() throws IOException {
+		for(Run r : runs)
+			r.in.close();
+		for(File f : files)
+			f.delete();
+	}
+}
+
+/**
+ * Reads annotation gene by gene, so raw features of whole annotation are never kept in memory.
+ * Each gene is all features with the same chromosome and gene_id, gene lines go first, other lines follow in order of file.
+ * If annotation is read as is, genes are returned in order of file and their lines should be successive (as in annotation made by annotate or gff2sajr);
+ * if features of some gene are found not successive (or have no gene line), reading stops (see isSplit). Otherwise annotation is sorted by chromosomes and gene_ids
+ * in temporary files first (see SortedGFF).
+ */
+public class GFFGeneReader {
+	private final GFFChunkReader chunks;
+	private final SortedGFF sorted;
+	private ArrayList<GFFeature> chunk = null;
+	private int chunk_pos = 0;
+	//first feature of next gene
+	private GFFeature next;
+	//chromosome and gene_id of genes that are already returned
+	private final HashSet<String> done = new HashSet<>();
+	private boolean split = false;
+
+	/**
+	 * @param fname
+	 * @param threads see GFFChunkReader
+	 * @param sort if true, annotation is sorted first
+	 * @throws IOException
+	 * @throws GFFException
+	 */
+	public GFFGeneReader(String fname,int threads,boolean sort) throws IOException, GFFException {
+		if(sort) {
+			chunks = null;
+			sorted = new SortedGFF(fname, threads);
+		}else {
+			chunks = new GFFChunkReader(fname, threads);
+			sorted = null;
+		}
+		next = nextFeature();
+	}
+
+	static void checkGeneId(GFFeature f) {
+		if(f.getAttr("gene_id") == null)
+			Log.closeWithError("Wrong annotation file format. Features should have gene_id attribute.", null);
+	}
+
+	private GFFeature nextFeature() throws IOException, GFFException {
+		GFFeature r;
+		if(sorted != null) {
+			r = sorted.next();
+		}else {
+			while(chunk == null || chunk_pos == chunk.size()) {
+				chunk = chunks.next();
+				chunk_pos = 0;
+				if(chunk == null)
+					return null;
+			}
+			r = chunk.get(chunk_pos);
+			chunk.set(chunk_pos++, null);
+		}
+		if(r != null)
+			checkGeneId(r);
+		return r;
+	}
+
+	/**
+	 * @return features of next gene, null if there are no more genes or if features of the gene are not successive (see isSplit)
+	 * @throws IOException
+	 * @throws GFFException
+	 */
+	public ArrayList<GFFeature> next() throws IOException, GFFException {
+		if(next == null || split)
+			return null;
+		String seqname = next.seqname;
+		String gene_id = next.getAttr("gene_id");
+		if(!done.add(seqname+"\t"+gene_id)) {
+			split = true;
+			return null;
+		}
+		ArrayList<GFFeature> genes = new ArrayList<>();
+		ArrayList<GFFeature> other = new ArrayList<>();
+		for(;next != null && next.seqname.equals(seqname) && next.getAttr("gene_id").equals(gene_id);next = nextFeature()) {
+			if(next.feature.equals("gene"))
+				genes.add(next);
+			else
+				other.add(next);
+		}
+		//gene line could be somewhere later
+		if(sorted == null && genes.isEmpty()) {
+			split = true;
+			return null;
+		}
+		genes.addAll(other);
+		return genes;
+	}
+
+	/**
+	 * @return true if reading of unsorted annotation was stopped since features of some gene are not successive
+	 */
+	public boolean isSplit() {
+		return split;
+	}
+
+	public void close() throws IOException {
+		if(chunks != null)
+			chunks.close();
+		if(sorted != null)
+			sorted.close();
+	}
+}
@@ -1,49 +1,172 @@
 package util.bio;
 
-import java.io.BufferedReader;
-import java.io.*;
-import java.io.FileReader;
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.zip.GZIPInputStream;
 
+/**
+ * Interns values of one column (seqnames, sources or feature types), so each distinct value is one String object.
+ * Features usually come in runs of the same value, so the last value is checked first without making a String.
+ */
+class Names {
+	private final HashMap<String, String> names = new HashMap<>();
+	private byte[] last = new byte[0];
+	private String last_name = null;
+
+	String get(byte[] b,int from,int to) {
+		int len = to-from;
+		if(last_name != null && len == last.length) {
+			int i = 0;
+			for(;i<len && last[i] == b[from+i];i++);
+			if(i == len)
+				return last_name;
+		}
+		String n = new String(b, from, len, StandardCharsets.UTF_8);
+		String r = names.get(n);
+		if(r == null) {
+			r = n;
+			names.put(r, r);
+		}
+		last = Arrays.copyOfRange(b, from, to);
+		last_name = r;
+		return r;
+	}
+}
+
 public class GFFParser{
-	private BufferedReader in;
-	private String line;
-	
+	private InputStream in;
+	private byte[] buf = new byte[1<<20];
+	private int pos = 0;
+	private int len = 0;
+	//current line without line end
+	private byte[] line = new byte[1024];
+	private int line_len = -1;
+	//line ended by '\r', '\n' after it should be skipped
+	private boolean skip_lf = false;
+	final Names seqnames = new Names();
+	final Names sources = new Names();
+	final Names features = new Names();
+
 	/**
-	 * parses GFF file, omits all lines started with '#' 
+	 * parses GFF file, omits all lines started with '#'
 	 * @param fname
 	 * @throws IOException
 	 */
 	public GFFParser(String fname) throws IOException {
 		if(fname.endsWith(".gz")){
-			in = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(fname))),1000000);
+			in = new GZIPInputStream(new FileInputStream(fname),1<<16);
 		}else
-			in = new BufferedReader(new FileReader(fname),1000000);
+			in = new FileInputStream(fname);
+		readTillNextLine();
+	}
+
+	/**
+	 * parses lines of chunk, chunk should end by line end
+	 * @param chunk
+	 * @param len
+	 * @throws IOException
+	 */
+	GFFParser(byte[] chunk,int len) throws IOException {
+		in = new ByteArrayInputStream(chunk, 0, 0);
+		buf = chunk;
+		this.len = len;
 		readTillNextLine();
 	}
 	
-	private void readTillNextLine() throws IOException {
-		for(line = in.readLine();line !=null && line.startsWith("#");line = in.readLine()) {}
+	/**
+	 * Reads whole file. If threads is more than 1, file is parsed by chunks in parallel (see GFFChunkReader),
+	 * in this case attributes of features are already parsed, so they could be read from different threads.
+	 * @param fname
+	 * @param threads
+	 * @return all features in order of file
+	 * @throws IOException
+	 * @throws GFFException
+	 */
+	public static ArrayList<GFFeature> readAll(String fname,int threads) throws IOException, GFFException {
+		ArrayList<GFFeature> r = new ArrayList<>();
+		if(threads < 2) {
+			GFFParser p = new GFFParser(fname);
+			for(GFFeature f=p.next();f != null;f=p.next())
+				r.add(f);
+			p.close();
+			return r;
+		}
+		GFFChunkReader in = new GFFChunkReader(fname, threads);
+		for(ArrayList<GFFeature> c=in.next();c != null;c=in.next())
+			r.addAll(c);
+		in.close();
+		return r;
 	}
 	
+	private void readTillNextLine() throws IOException {
+		while(readLine() && line_len > 0 && line[0] == '#') {}
+	}
+
+	/**
+	 * reads next line into line, lines are ended by '\n', '\r' or "\r\n" (as by BufferedReader)
+	 * @return false if there are no more lines
+	 * @throws IOException
+	 */
+	private boolean readLine() throws IOException {
+		line_len = 0;
+		boolean any = false;
+		for(;;) {
+			if(pos == len) {
+				len = in.read(buf);
+				pos = 0;
+				if(len <= 0) {
+					len = 0;
+					if(!any)
+						line_len = -1;
+					return any;
+				}
+			}
+			if(skip_lf) {
+				skip_lf = false;
+				if(buf[pos] == '\n') {
+					pos++;
+					continue;
+				}
+			}
+			int i = pos;
+			for(;i<len && buf[i] != '\n' && buf[i] != '\r';i++);
+			if(line_len+i-pos > line.length)
+				line = Arrays.copyOf(line, Math.max(line.length*2, line_len+i-pos));
+			System.arraycopy(buf, pos, line, line_len, i-pos);
+			line_len += i-pos;
+			any = true;
+			if(i < len) {
+				skip_lf = buf[i] == '\r';
+				pos = i+1;
+				return true;
+			}
+			pos = i;
+		}
+	}
+
 	public void close() throws IOException {
 		in.close();
 	}
 
 	/**
-	 * 
+	 *
 	 * @return null if it's the end of the file
 	 * @throws GFFException
 	 */
 	public GFFeature next() throws GFFException {
-		if(line == null)
+		if(line_len == -1)
 			return null;
-		GFFeature t = new GFFeature(line);
+		GFFeature t = new GFFeature(line, line_len, this);
 		try {
 			readTillNextLine();
 		} catch (IOException e) {
-			throw new GFFException(e.getMessage(),line);
+			throw new GFFException(e.getMessage(),new String(line, 0, Math.max(0, line_len), StandardCharsets.UTF_8));
 		}
 		return t;
 	}
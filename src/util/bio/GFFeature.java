@@ -1,9 +1,11 @@
 package util.bio;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 
-import util.Util;
+import util.Log;
 
 public class GFFeature{
 	public final String seqname;
@@ -14,7 +16,12 @@ public class GFFeature{
 	public final double score;
 	public final int strand;
 	public final int phase;
-	private final HashMap<String, String> attrs;
+	//attributes column that is not parsed yet
+	private String attr_line = null;
+	//names and values of parsed attributes
+	private String[] attrs = NO_ATTRS;
+	private int attrs_n = 0;
+	private static final String[] NO_ATTRS = new String[0];
 	
 	public GFFeature(String seqname,String feature,int start,int stop,int strand,String source,double score,int phase){
 		this.seqname = seqname;
@@ -25,7 +32,6 @@ public class GFFeature{
 		this.source = source;
 		this.score = score;
 		this.phase = phase;
-		attrs = new HashMap<>();
 	}
 	
 	public GFFeature(String seqname,String feature,int start,int stop,int strand){
@@ -50,91 +56,149 @@ public class GFFeature{
 	}
 	
 	public GFFeature(String l) throws GFFException {
-		String[] t = l.split("\t",-1);
-		if(t.length != 9)
-			throw new GFFException("Wrong gff file: there should be 9 columns: ",l);
-		seqname = t[0];
-		source = t[1];
-		feature = t[2];
-		start = Integer.parseInt(t[3]);
-		stop = Integer.parseInt(t[4]);
+		this(l.getBytes(StandardCharsets.UTF_8), -1, null);
+	}
+	
+	/**
+	 * Splits line by tabs without regex, attributes are kept as string and parsed on first request (see getAttr).
+	 * @param l
+	 * @param len length of line in l, -1 for whole array
+	 * @param p parser that interns seqnames, sources and feature types, could be null
+	 * @throws GFFException
+	 */
+	GFFeature(byte[] l,int len,GFFParser p) throws GFFException {
+		if(len == -1)
+			len = l.length;
+		int[] tabs = new int[10];
+		int n = 0;
+		tabs[n++] = -1;
+		for(int i=0;i<len;i++)
+			if(l[i] == '\t') {
+				if(n == 9)
+					throw new GFFException("Wrong gff file: there should be 9 columns: ",line(l, len));
+				tabs[n++] = i;
+			}
+		if(n != 9)
+			throw new GFFException("Wrong gff file: there should be 9 columns: ",line(l, len));
+		tabs[9] = len;
+		seqname = p == null?column(l, tabs, 0):p.seqnames.get(l, tabs[0]+1, tabs[1]);
+		source = p == null?column(l, tabs, 1):p.sources.get(l, tabs[1]+1, tabs[2]);
+		feature = p == null?column(l, tabs, 2):p.features.get(l, tabs[2]+1, tabs[3]);
+		start = parseInt(l, tabs, 3);
+		stop = parseInt(l, tabs, 4);
 		if(start> stop)
-			throw new GFFException("Wrong gff file: starts cannot be greater than end",l);
-		if(!t[6].equals(".") && !t[6].equals("-") && !t[6].equals("+"))
-			throw new GFFException("Wrong gff file: strand should be in [.+-]",l);
-		score = t[5].equals(".")?0:Double.parseDouble(t[5]);
-		if(t[6].equals("."))
+			throw new GFFException("Wrong gff file: starts cannot be greater than end",line(l, len));
+		byte s = tabs[7]-tabs[6] == 2?l[tabs[6]+1]:0;
+		if(s != '.' && s != '-' && s != '+')
+			throw new GFFException("Wrong gff file: strand should be in [.+-]",line(l, len));
+		score = isDot(l, tabs, 5)?0:Double.parseDouble(column(l, tabs, 5));
+		if(s == '.')
 			strand = 0;
 		else
-			strand = t[6].equals("-")?-1:1;
-		attrs = new HashMap<String, String>();
-		if(t[7].equals("."))
+			strand = s == '-'?-1:1;
+		if(isDot(l, tabs, 7))
 			phase = -1;
 		else
-			phase = Integer.parseInt(t[7]);
-		t[8] = Util.removeLeadingSpaces(t[8]);
-		t = parseAttrs(t[8]);
-		if(t.length%2 != 0)
-			throw new GFFException("Wrong gff file: cannot parse attributes. There should be even number of elements separated by [\\s;=]+",l);
-		for(int i=0;i<t.length;) {
-			if(t[i].equals("")) {
-				i++;
-				continue;
-			}
-			attrs.put(t[i], t[i+1]);
-			i+=2;
+			phase = parseInt(l, tabs, 7);
+		attr_line = column(l, tabs, 8);
+	}
+	
+	private static String line(byte[] l,int len) {
+		return new String(l, 0, len, StandardCharsets.UTF_8);
+	}
+	
+	private static String column(byte[] l,int[] tabs,int c) {
+		return new String(l, tabs[c]+1, tabs[c+1]-tabs[c]-1, StandardCharsets.UTF_8);
+	}
+	
+	private static boolean isDot(byte[] l,int[] tabs,int c) {
+		return tabs[c+1]-tabs[c] == 2 && l[tabs[c]+1] == '.';
+	}
+	
+	/**
+	 * @return column as int, non-digit columns and long numbers are parsed by Integer.parseInt (to get the same result or exception)
+	 */
+	private static int parseInt(byte[] l,int[] tabs,int c) {
+		int from = tabs[c]+1;
+		int to = tabs[c+1];
+		if(to == from || to-from > 9)
+			return Integer.parseInt(column(l, tabs, c));
+		int r = 0;
+		for(int i=from;i<to;i++) {
+			if(l[i] < '0' || l[i] > '9')
+				return Integer.parseInt(column(l, tabs, c));
+			r = r*10+(l[i]-'0');
 		}
+		return r;
 	}
 	
 	public void addAttr(String n,String v){
-		attrs.put(n, v);
+		parseAttrs();
+		for(int i=0;i<attrs_n;i+=2)
+			if(attrs[i].equals(n)) {
+				attrs[i+1] = v;
+				return;
+			}
+		if(attrs_n == attrs.length)
+			attrs = Arrays.copyOf(attrs, Math.max(4, attrs.length*2));
+		attrs[attrs_n++] = n;
+		attrs[attrs_n++] = v;
+	}
+	
+	private static boolean isSep(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r' || c == ';' || c == '=';
 	}
 	
 	/**
-	 * Splits string by any sequence of "[\\s;=]+". all sequences within double quotes are considered as single token
-	 * 
-	 * @param a
-	 * @return
+	 * Splits attributes line by any sequence of "[\\s;=]+", all sequences within double quotes are considered as single token.
+	 * Tokens are pairs of names and values, empty tokens (from "") are skipped. If name occurs several times the last value is used.
+	 * Attributes are parsed on first access, so access from different threads is safe only after they are parsed.
 	 */
-	private String[] parseAttrs(String a) {
-		String sep = "[\\s;=]+";
-		char q = '"';
-		ArrayList<String> r = new ArrayList<>();
-		ArrayList<Integer> quotes = new ArrayList<>();		
-		int t = -1;
-		while(true) {
-			t = a.indexOf(q, t+1);
-			if(t == -1)
-				break;
-			quotes.add(t);
-		}
-		int prev = 0;
-		for(int i=0;i<quotes.size()-1;i+=2) {
-			if(quotes.get(i) > prev) {
-				String f = a.substring(prev,quotes.get(i));
-				String[] tmp =  f.split(sep);
-				for(String m : tmp)
-					if(m.length()>0)
-						r.add(m);
+	void parseAttrs() {
+		if(attr_line == null)
+			return;
+		String a = attr_line;
+		attr_line = null;
+		//unpaired last quote is not a quote
+		int quotes = 0;
+		for(int i=a.indexOf('"');i != -1;i=a.indexOf('"', i+1))
+			quotes++;
+		quotes -= quotes%2;
+		ArrayList<String> t = new ArrayList<>();
+		for(int i=0;i<a.length();) {
+			char c = a.charAt(i);
+			if(c == '"' && quotes > 0) {
+				int e = a.indexOf('"', i+1);
+				t.add(a.substring(i+1, e));
+				quotes -= 2;
+				i = e+1;
+			}else if(isSep(c)) {
+				i++;
+			}else {
+				int e = i+1;
+				for(;e<a.length() && !isSep(a.charAt(e)) && !(a.charAt(e) == '"' && quotes > 0);e++);
+				t.add(a.substring(i, e));
+				i = e;
 			}
-			r.add(a.substring(quotes.get(i)+1,quotes.get(i+1)));
-			prev = quotes.get(i+1)+1;
 		}
-		if(a.length()>prev) {
-			String f = a.substring(prev);
-			String[] tmp =  f.split(sep);
-			for(String m : tmp)
-				if(m.length()>0)
-					r.add(m);
+		if(t.size()%2 != 0)
+			Log.closeWithError("Wrong gff file: cannot parse attributes. There should be even number of elements separated by [\\s;=]+: '"+a+"'", null);
+		for(int i=0;i<t.size();) {
+			if(t.get(i).equals("")) {
+				i++;
+				continue;
+			}
+			addAttr(t.get(i), t.get(i+1));
+			i+=2;
 		}
-		//System.out.println("=====================");
-		//for(String m : r)
-		//	System.out.println("\t\t'"+m+"'");
-		return r.toArray(new String[0]);
 	}
 	
 	public String getAttr(String name) {
-		return attrs.get(name);
+		parseAttrs();
+		for(int i=0;i<attrs_n;i+=2)
+			if(attrs[i].equals(name))
+				return attrs[i+1];
+		return null;
 	}
 	
 	public int getAttrInt(String name) {
@@ -143,6 +207,11 @@ public class GFFeature{
 	
 	public String toString() {
 		String r = seqname+"\t"+source+"\t"+feature+"\t"+start+"\t"+stop+"\t"+score+"\t"+(strand==0?".":(strand==1?"+":"-"))+"\t"+(phase==-1?".":phase)+"\t";
+		parseAttrs();
+		//attributes are printed in order of hash, as they were kept in HashMap
+		HashMap<String, String> attrs = new HashMap<>();
+		for(int i=0;i<attrs_n;i+=2)
+			attrs.put(this.attrs[i], this.attrs[i+1]);
 		for(String n : attrs.keySet())
 			r = r + n+"="+attrs.get(n)+"; ";
 		if(attrs.size() != 0)
@@ -10,8 +10,9 @@ import java.util.LinkedList;
 import util.Graph;
 import util.Interval;
 import util.Log;
-import util.Settings;
+import util.CountOptions;
 import util.StopIntervalComparator;
+import util.TextBuffer;
 import util.Util;
 import util.bio.Seg.segPos;
 import util.bio.Seg.segType;
@@ -55,19 +56,24 @@ public class Gene extends Interval {
 	}
 	
 	/**
-	 * prints tab delimeted segment_id,inclusion_reads, exlusion reads and inclusion ratio.
-	 * @param o
+	 * calculates inclusion and exclusion reads of segments. 
+	 * For first and last segments inclusion is number of junction reads that start (end) the segment, exclusion is number of junction reads of alternative first (last) segments.
+	 * For other segments inclusion is number of segment reads, exclusion is number of junction reads that skip the segment.
+	 * @param cnt counts of sample
+	 * @param found new introns of the gene that are not added into it (see ChrAnnotation.getFoundIntrons), could be null
+	 * @param inc inclusion reads by segments (in the same order as getSeg)
+	 * @param exc exclusion reads by segments
 	 */
 	@SuppressWarnings("incomplete-switch")
-	public void printSegCovs(PrintStream o) {
-		HashMap<Seg,LinkedList<Intron>> seg2intron = linkSeg2Introns();
-		int[] ecov = new int[segs.size()];
-		int tot_first = 0;
-		int tot_last = 0;
+	public void getSegCovs(Counts cnt,ArrayList<Intron> found,long[] inc,long[] exc) {
+		HashMap<Seg,LinkedList<Intron>> seg2intron = linkSeg2Introns(found);
+		long[] ecov = new long[segs.size()];
+		long tot_first = 0;
+		long tot_last = 0;
 		for(int i=0;i<segs.size();i++) {
 			LinkedList<Intron> ints = seg2intron.get(segs.get(i));
 			for(Intron j : ints)
-				ecov[i] += (int)j.getCov();
+				ecov[i] += cnt.get(j);
 			switch(segs.get(i).segpos) {
 			case FIRST:
 				tot_first += ecov[i];
@@ -78,26 +84,56 @@ public class Gene extends Interval {
 			
 			}
 		}
-		//print
+		for(int i =0;i<segs.size();i++) {
+			Seg s = segs.get(i);
+			switch(s.segpos) {
+			case FIRST:
+				inc[i] = ecov[i];
+				exc[i] = tot_first-ecov[i];
+				break;
+			case LAST:
+				inc[i] = ecov[i];
+				exc[i] = tot_last-ecov[i];
+				break;
+			default:
+				inc[i] = cnt.get(s);
+				exc[i] = ecov[i];
+			}
+		}
+	}
+	
+	/**
+	 * prints tab delimeted segment_id,inclusion_reads, exlusion reads and inclusion ratio.
+	 * @param o
+	 * @param cnt counts of sample to print
+	 * @param found new introns of the gene that are not added into it, could be null
+	 * @param opt used to calculate inclusion ratio, segments without reads are skipped if out_sparse is set
+	 */
+	@SuppressWarnings("incomplete-switch")
+	public void printSegCovs(TextBuffer o,Counts cnt,ArrayList<Intron> found,CountOptions opt) {
+		long[] inc = new long[segs.size()];
+		long[] exc = new long[segs.size()];
+		getSegCovs(cnt, found, inc, exc);
 		for(int i =0;i<segs.size();i++) {
 			Seg s = segs.get(i);
 			if(s.getId() == null)
 				continue;
-			o.print(s.getId()+"\t");
+			if(opt.out_sparse && inc[i] == 0 && exc[i] == 0)
+				continue;
+			o.add(s.getId()).add('\t').add(inc[i]).add('\t').add(exc[i]).add('\t');
 			switch(s.segpos) {
 			case FIRST:
-				o.println(ecov[i]+"\t"+(tot_first-ecov[i])+"\t"+((double)ecov[i])/tot_first);
-				break;
 			case LAST:
-				o.println(ecov[i]+"\t"+(tot_last-ecov[i])+"\t"+((double)ecov[i])/tot_last);
+				o.add(((double)inc[i])/(inc[i]+exc[i]));
 				break;
 			case INTERNAL:
-				o.println((int)s.getCov()+"\t"+ecov[i]+"\t"+calcIR(ecov[i],(int)s.getCov(),s.length()));
+				o.add(calcIR(exc[i],inc[i],s.length(),opt));
 				break;
 			case ONLY:
-				o.println((int)s.getCov()+"\t"+ecov[i]+"\t1");
+				o.add('1');
 				break;
 			}
+			o.nl();
 		}
 	}
 	
@@ -119,14 +155,15 @@ public class Gene extends Interval {
 	 * @param e
 	 * @param i
 	 * @param l
+	 * @param opt
 	 * @return NaN if e and i are zero
 	 */
-	private Double calcIR(double e, double i, double l) {
+	private double calcIR(double e, double i, double l,CountOptions opt) {
 		if(e == 0 && i == 0)
 			return Double.NaN;
-		int rl = Settings.S().getInt(Settings.EFFECTIVE_READ_LENGTH);
+		int rl = opt.effective_read_length;
 		e = e/(rl-1);
-		if(Settings.S().getBoolean(Settings.COUNT_ONLY_BORDER_READS) && rl<=l) {
+		if(opt.count_only_border_reads && rl<=l) {
 			i = i/(2*rl-2);
 		}else {
 			i = i/(l+rl-1);
@@ -136,10 +173,21 @@ public class Gene extends Interval {
 	
 	/**
 	 * introns and exons shoule be sorted
+	 * @param found introns to be used together with introns of the gene, could be null
 	 * @return for each internal segment gives introns that span it (if any). For first and last segments gives introns that link it to the rest of gene.
 	 */
 	@SuppressWarnings("incomplete-switch")
-	private HashMap<Seg,LinkedList<Intron>> linkSeg2Introns(){
+	private HashMap<Seg,LinkedList<Intron>> linkSeg2Introns(ArrayList<Intron> found){
+		ArrayList<Intron> introns = this.introns;
+		int max_intron_length = this.max_intron_length;
+		if(found != null) {
+			introns = new ArrayList<>(introns);
+			for(Intron i : found) {
+				introns.add(i);
+				max_intron_length = Math.max(max_intron_length, i.length());
+			}
+			Collections.sort(introns);
+		}
 		HashMap<Seg,LinkedList<Intron>> r = new HashMap<>();
 		@SuppressWarnings("unchecked")
 		ArrayList<Intron> stop_introns = (ArrayList<Intron>)introns.clone();
@@ -314,8 +362,17 @@ public class Gene extends Interval {
 	}
 		
 	public HashSet<Seg> getSegForRead(int[] r){
+		return getSegForRead(r, r.length);
+	}
+	
+	/**
+	 * @param r mapped blocks, only first len values are used
+	 * @param len
+	 * @return
+	 */
+	public HashSet<Seg> getSegForRead(int[] r,int len){
 		HashSet<Seg> res = new HashSet<>();
-		for(int i=0;i<r.length;i+=2) {
+		for(int i=0;i<len;i+=2) {
 			int inx = Collections.binarySearch(segs, new Interval(r[i],r[i+1],strand)); 
 			if(inx < 0)
 				inx = -inx-1;
@@ -0,0 +1,73 @@
+package util.bio;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * Window of genes (of one strand) that overlap sweep position, used to look for genes overlapping reads that come sorted by start.
+ * Genes enter the window when the position reaches their start and retire when it passes their stop,
+ * so cost of query depends on number of genes at the position rather than on length of the longest gene of chromosome.
+ */
+class GeneSweep {
+	//genes of chromosome sorted by strand and start
+	private final ArrayList<Gene> genes;
+	//first gene (of the strand) that didn't enter the window
+	private int next;
+	//index after the last gene of the strand
+	private final int end;
+	private Gene[] active = new Gene[8];
+	private int active_cnt = 0;
+	private int pos = Integer.MIN_VALUE;
+	
+	GeneSweep(ArrayList<Gene> genes,int strand) {
+		this.genes = genes;
+		int i = 0;
+		while(i < genes.size() && genes.get(i).strand < strand)
+			i++;
+		next = i;
+		while(i < genes.size() && genes.get(i).strand == strand)
+			i++;
+		end = i;
+	}
+	
+	/**
+	 * adds genes that overlap region to given set. Moves the window to start of the region.
+	 * @param start
+	 * @param stop
+	 * @param to
+	 * @return false if region starts before current position, the window cannot be used then
+	 */
+	boolean getGenes(int start,int stop,HashSet<Gene> to) {
+		if(start < pos)
+			return false;
+		if(start > pos)
+			advance(start);
+		for(int i=0;i<active_cnt;i++)
+			to.add(active[i]);
+		for(int i=next;i<end && genes.get(i).start <= stop;i++)
+			to.add(genes.get(i));
+		return true;
+	}
+	
+	private void advance(int p) {
+		pos = p;
+		int n = 0;
+		for(int i=0;i<active_cnt;i++)
+			if(active[i].stop >= p)
+				active[n++] = active[i];
+		for(int i=n;i<active_cnt;i++)
+			active[i] = null;
+		active_cnt = n;
+		for(;next<end && genes.get(next).start <= p;next++) {
+			Gene g = genes.get(next);
+			if(g.stop < p)
+				continue;
+			if(active_cnt == active.length) {
+				Gene[] t = new Gene[active_cnt*2];
+				System.arraycopy(active, 0, t, 0, active_cnt);
+				active = t;
+			}
+			active[active_cnt++] = g;
+		}
+	}
+}
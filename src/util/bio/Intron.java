@@ -1,13 +1,20 @@
 package util.bio;
 
+import java.util.BitSet;
 import java.util.HashSet;
 import util.Interval;
 
 
 public class Intron extends Interval {
+	//coverage used by annotator, read_counter keeps counts in Counts
+	private double cov = 0;
 	private int max_ovehang = 0;
 	private HashSet<Integer> read_positions = null;
 	Integer position_no = null;
+	//samples that have reads with this intron, null if intron is from annotation (see ChrAnnotation)
+	BitSet found_by = null;
+	//genes (of annotation used to count reads) that contain the intron, sorted by ids. See ChrAnnotation
+	Gene[] genes = null;
 	
 	//private int[][] overhangStat = null;
 	//int min_read_length = -1;
@@ -59,6 +66,10 @@ public class Intron extends Interval {
 		max_ovehang = o;
 	}
 	
+	public double getCov(){
+		return cov;
+	}
+	
 	public void setCov(double c){
 		cov = c;
 	}
@@ -0,0 +1,92 @@
+package util.bio;
+
+import java.util.ArrayList;
+
+/**
+ * Hash of introns by (start, stop, strand) packed into single long, 
+ * allows to look for junctions of reads without making probe introns.
+ * Open addressing with linear probing, introns cannot be removed.
+ */
+class IntronIndex {
+	private long[] keys;
+	private Intron[] values;
+	private int size = 0;
+	
+	IntronIndex(int expected) {
+		int cap = 16;
+		while(cap < expected*2)
+			cap <<= 1;
+		keys = new long[cap];
+		values = new Intron[cap];
+	}
+	
+	/**
+	 * positions should be positive, strand is one of -1, 0, 1
+	 */
+	static long key(int start,int stop,int strand) {
+		return ((long)start << 33) | ((long)stop << 2) | (strand+1);
+	}
+	
+	private int slot(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		int mask = keys.length-1;
+		int i = (int)(h ^ (h >>> 32)) & mask;
+		while(values[i] != null && keys[i] != key)
+			i = (i+1) & mask;
+		return i;
+	}
+	
+	Intron get(int start,int stop,int strand) {
+		return values[slot(key(start, stop, strand))];
+	}
+	
+	/**
+	 * adds intron if there is no intron with the same coordinates
+	 * @param i
+	 * @return intron with the same coordinates that is already in index, or i
+	 */
+	Intron add(Intron i) {
+		long key = key(i.start, i.stop, i.strand);
+		int s = slot(key);
+		if(values[s] != null)
+			return values[s];
+		keys[s] = key;
+		values[s] = i;
+		if(++size*2 > keys.length)
+			resize();
+		return i;
+	}
+	
+	private void resize() {
+		long[] ks = keys;
+		Intron[] vs = values;
+		keys = new long[ks.length*2];
+		values = new Intron[vs.length*2];
+		for(int i=0;i<ks.length;i++)
+			if(vs[i] != null) {
+				int s = slot(ks[i]);
+				keys[s] = ks[i];
+				values[s] = vs[i];
+			}
+	}
+	
+	IntronIndex copy() {
+		IntronIndex r = new IntronIndex(0);
+		r.keys = keys.clone();
+		r.values = values.clone();
+		r.size = size;
+		return r;
+	}
+	
+	int size() {
+		return size;
+	}
+	
+	ArrayList<Intron> values(){
+		ArrayList<Intron> r = new ArrayList<>(size);
+		for(Intron i : values)
+			if(i != null)
+				r.add(i);
+		return r;
+	}
+}
@@ -0,0 +1,89 @@
+package util.bio;
+
+import java.util.Arrays;
+
+/**
+ * Keeps resolutions of reads (or pairs) that were counted at current position. 
+ * If input is sorted by coordinates, reads with the same structure (highly expressed exons and junctions) usually go one after another,
+ * so they are resolved only once. Resolutions do not depend on sample, so in merged mode (see ReadCounter.countAndPrintMerged) reads of all samples share the cache. Cache is cleaned when position (start of the read, or of the second mate for pairs) changes.
+ */
+class ReadCache {
+	private static final int SIZE = 64;
+	private final Resolution[] entries = new Resolution[SIZE];
+	private int size = 0;
+	private int pos = -1;
+	
+	/**
+	 * @param r1 mapped blocks of the read (or of the first mate)
+	 * @param len1
+	 * @param r2 mapped blocks of the second mate, null for single read
+	 * @param len2
+	 * @param strand
+	 * @return resolution of read with the same structure or null if there is no such read at current position
+	 */
+	Resolution get(int[] r1,int len1,int[] r2,int len2,int strand) {
+		int p = r2 == null?r1[0]:Math.max(r1[0], r2[0]);
+		if(p != pos) {
+			clear();
+			pos = p;
+			return null;
+		}
+		int h = hash(r1, len1, r2, len2, strand);
+		for(int i=0;i<size;i++) {
+			Resolution e = entries[i];
+			if(e.hash == h && e.strand == strand && matches(e, r1, len1, r2, len2))
+				return e;
+		}
+		return null;
+	}
+	
+	/**
+	 * makes new (not resolved) resolution and keeps it in cache
+	 */
+	Resolution add(int[] r1,int len1,int[] r2,int len2,int strand) {
+		int[] b;
+		if(r2 == null)
+			b = Arrays.copyOf(r1, len1);
+		else {
+			b = new int[len1+len2];
+			System.arraycopy(r1, 0, b, 0, len1);
+			System.arraycopy(r2, 0, b, len1, len2);
+		}
+		Resolution e = new Resolution(b, r2 == null?-1:len1, strand, hash(r1, len1, r2, len2, strand));
+		if(size == SIZE)
+			clear();
+		entries[size++] = e;
+		return e;
+	}
+	
+	void clear() {
+		for(int i=0;i<size;i++)
+			entries[i] = null;
+		size = 0;
+	}
+	
+	private static boolean matches(Resolution e,int[] r1,int len1,int[] r2,int len2) {
+		if(r2 == null) {
+			if(e.len1 != -1 || e.blocks.length != len1)
+				return false;
+		}else if(e.len1 != len1 || e.blocks.length != len1+len2)
+			return false;
+		for(int i=0;i<len1;i++)
+			if(e.blocks[i] != r1[i])
+				return false;
+		for(int i=0;i<len2;i++)
+			if(e.blocks[len1+i] != r2[i])
+				return false;
+		return true;
+	}
+	
+	private static int hash(int[] r1,int len1,int[] r2,int len2,int strand) {
+		int h = strand;
+		for(int i=0;i<len1;i++)
+			h = h*31 + r1[i];
+		h = h*31 + len1;
+		for(int i=0;i<len2;i++)
+			h = h*31 + r2[i];
+		return h;
+	}
+}
@@ -0,0 +1,80 @@
+package util.bio;
+
+import java.util.Arrays;
+
+import util.Log;
+import util.Stat;
+
+/**
+ * How read (or pair) with given mapped blocks and strand is counted: features to add the read to and statistics to be added.
+ * Resolution is made once (see ChrAnnotation.resolve) and then could be counted for each read with the same structure
+ * in any sample (counts are added to column of given Counts).
+ */
+class Resolution {
+	final int[] blocks;
+	//number of blocks values of the first mate, -1 for single read
+	final int len1;
+	final int strand;
+	final int hash;
+	
+	boolean junctions = false;
+	boolean unknown_junction = false;
+	//read is not counted because of unknown junctions
+	boolean skipped = false;
+	boolean unknown_junction_comb = false;
+	boolean gene_reads = false;
+	boolean exon_reads = false;
+	Gene[] genes;
+	Seg[] segs;
+	Intron[] introns;
+	//not annotated junctions of the read, marked as found by sample when read is counted
+	private Intron[] found = NO_INTRONS;
+	
+	private static final Intron[] NO_INTRONS = new Intron[0];
+	
+	Resolution(int[] blocks,int len1,int strand,int hash) {
+		this.blocks = blocks;
+		this.len1 = len1;
+		this.strand = strand;
+		this.hash = hash;
+	}
+	
+	void setFound(Intron[] ints,int len) {
+		if(len > 0)
+			found = Arrays.copyOf(ints, len);
+	}
+	
+	/**
+	 * adds read (or pair) into statistics of current thread and into counts
+	 * @param cnt
+	 */
+	void count(Counts cnt) {
+		int reads = len1 < 0?1:2;
+		Log.addStat(Stat.USED_READS, reads);
+		if(junctions)
+			Log.addStat(Stat.JUNCTIONS_CNT, 1);
+		if(unknown_junction)
+			Log.addStat(Stat.UNKNOWN_JUNCTION, reads);
+		for(Intron i : found) {
+			//junction could be found by another sample
+			if(!i.found_by.get(cnt.col)) {
+				Log.addStat(Stat.NEW_JUNCTIONS_FOUND, 1);
+				i.found_by.set(cnt.col);
+			}
+		}
+		if(skipped)
+			return;
+		if(unknown_junction_comb)
+			Log.addStat(Stat.UNKNOWN_JUNCTION_COMB, reads);
+		if(gene_reads)
+			Log.addStat(Stat.GENE_READS, reads);
+		if(exon_reads)
+			Log.addStat(Stat.EXON_READS, reads);
+		for(Gene g : genes)
+			cnt.add(g);
+		for(Seg s : segs)
+			cnt.add(s);
+		for(Intron i : introns)
+			cnt.add(i);
+	}
+}